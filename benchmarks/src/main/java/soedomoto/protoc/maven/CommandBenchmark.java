@@ -0,0 +1,83 @@
+package soedomoto.protoc.maven;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.model.Build;
+import org.apache.maven.model.Model;
+import org.apache.maven.project.MavenProject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Argument construction of one protoc invocation: include validation, done once per generation ({@code includeArgs})
+ * and shared through populateIncludes, output flags and the file list, spilled to an @argfile when it gets long
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CommandBenchmark {
+    @Param({"1", "20", "100"})
+    int includes;
+    @Param({"1", "500"})
+    int batch;
+
+    File root;
+    ProtocMojo mojo;
+    List<File> files;
+    List<String> outputArgs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = SyntheticCorpus.createTempDir("pjmp-command");
+        files = SyntheticCorpus.writeProtos(new File(root, "src"), batch, SyntheticCorpus.Layout.FLAT);
+
+        Model model = new Model();
+        model.setBuild(new Build());
+        model.getBuild().setDirectory(new File(root, "target").getAbsolutePath());
+        mojo = new ProtocMojo();
+        mojo.project = new MavenProject(model);
+        mojo.includeDirectories = new File[includes];
+        for (int i = 0; i < includes; i++) {
+            mojo.includeDirectories[i] = new File(root, "include" + i);
+            mojo.includeDirectories[i].mkdirs();
+        }
+        outputArgs = mojo.outputArgs(files, "java", null, new File(root, "out"), null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(root);
+    }
+
+    @Benchmark
+    public List<String> includeArgs() throws Exception {
+        return ProtocMojo.includeArgs(mojo.includeDirectories);
+    }
+
+    @Benchmark
+    public List<String> populateIncludes() throws Exception {
+        List<String> args = new ArrayList<String>();
+        mojo.populateIncludes(args);
+        return args;
+    }
+
+    @Benchmark
+    public List<String> buildCommand() throws Exception {
+        List<String> cmd = mojo.buildCommand(files, "3.11.4", outputArgs);
+        for (String arg : cmd) {
+            if (arg.startsWith("@")) new File(arg.substring(1)).delete();
+        }
+        return cmd;
+    }
+
+    @Benchmark
+    public List<List<File>> partitionBatches() {
+        return ProtocMojo.partitionBatches(files, 100);
+    }
+}
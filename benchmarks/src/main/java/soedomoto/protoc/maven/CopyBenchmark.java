@@ -0,0 +1,87 @@
+package soedomoto.protoc.maven;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * copyFile, used to stage plugin binaries, and FileStaging, used for reactor protos, against the JDK copy paths:
+ * {@code stage} stages a new target (a hard link within one filesystem), {@code upToDate} one that is current already
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyBenchmark {
+    // a proto, a typical plugin binary, protoc itself
+    @Param({"4096", "1048576", "33554432"})
+    int size;
+
+    File root;
+    File source;
+    File target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = SyntheticCorpus.createTempDir("pjmp-copy");
+        source = SyntheticCorpus.writeRandomFile(new File(root, "source.bin"), size);
+        target = new File(root, "target.bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(root);
+    }
+
+    @Benchmark
+    public File copyFile() throws IOException {
+        return ProtocMojo.copyFile(source, target);
+    }
+
+    @Benchmark
+    public File stage() throws IOException {
+        target.delete();
+        FileStaging.stage(source, target);
+        return target;
+    }
+
+    @Benchmark
+    public File upToDate() throws IOException {
+        FileStaging.stage(source, target);
+        return target;
+    }
+
+    @Benchmark
+    public File filesCopy() throws IOException {
+        Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+
+    @Benchmark
+    public File transferTo() throws IOException {
+        FileChannel in = new FileInputStream(source).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(target).getChannel();
+            try {
+                long position = 0;
+                long count = in.size();
+                while (position < count) position += in.transferTo(position, count - position, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return target;
+    }
+}
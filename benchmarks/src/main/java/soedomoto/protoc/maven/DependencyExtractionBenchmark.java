@@ -0,0 +1,72 @@
+package soedomoto.protoc.maven;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extraction of protos from dependency jars as done by extractProtosFromDependencies: {@code cold} starts from an
+ * empty tree and an empty reactor cache like the first module of a fresh JVM, {@code warm} is a rebuild with
+ * unchanged dependencies
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DependencyExtractionBenchmark {
+    @Param({"10", "100"})
+    int jars;
+    @Param({"0", "50"})
+    int protosPerJar;
+    @Param({"1", "4"})
+    int threads;
+
+    File root;
+    File warmDir;
+    File coldDir;
+    List<File> artifacts;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = SyntheticCorpus.createTempDir("pjmp-dependencies");
+        artifacts = new ArrayList<File>();
+        for (int i = 0; i < jars; i++) {
+            // a third of the dependencies ship protos, the rest only classes
+            int protos = (i % 3 == 0) ? protosPerJar : 0;
+            artifacts.add(SyntheticCorpus.writeJar(new File(root, "repo/dep" + i + ".jar"), i, protos, 200));
+        }
+        warmDir = new File(root, "warm/include");
+        coldDir = new File(root, "cold/include");
+        new DependencyProtoExtractor(warmDir, "proto", new NullLog(), threads, false).extract(artifacts);
+    }
+
+    @Setup(Level.Invocation)
+    public void clean() {
+        FileUtils.deleteQuietly(coldDir);
+        new File(coldDir.getPath() + ".index").delete();
+        // the jars would otherwise be served from the protos read in earlier invocations
+        ReactorCache.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(root);
+    }
+
+    @Benchmark
+    public void cold() throws IOException {
+        new DependencyProtoExtractor(coldDir, "proto", new NullLog(), threads, false).extract(artifacts);
+    }
+
+    @Benchmark
+    public void warm() throws IOException {
+        new DependencyProtoExtractor(warmDir, "proto", new NullLog(), threads, false).extract(artifacts);
+    }
+}
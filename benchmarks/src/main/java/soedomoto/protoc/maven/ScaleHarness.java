@@ -0,0 +1,199 @@
+package soedomoto.protoc.maven;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.model.Build;
+import org.apache.maven.model.Model;
+import org.apache.maven.project.MavenProject;
+import org.sonatype.plexus.build.incremental.DefaultBuildContext;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * End-to-end scale harness: runs the generate goal on generated projects and checks time and file-write budgets.
+ * <p>
+ * Scenarios run in order on the same project, like consecutive builds of a developer: a cold build, a no-op rebuild,
+ * an edit of a leaf proto, an edit of an imported proto, then a cold build and an edit with several targets including
+ * a shaded one. Everything runs offline with the protoc embedded in protoc-jar.
+ * <p>
+ * For each scenario the harness reports wall time, protoc processes spawned for compilation, outputs the plugin wrote
+ * and files that actually changed on disk. The default budgets hold for 2000 protos on a developer machine and are
+ * overridden with system properties, e.g. {@code -Dharness.noop.millis=500 -Dharness.single-edit.writes=1},
+ * {@code -1} disables a check. The harness fails when a budget is exceeded, the harness profile of the benchmarks
+ * build runs it in the verify phase:
+ * <pre>
+ * mvn -f benchmarks/pom.xml verify -Pharness [-Dharness.files=2000]
+ * java -cp benchmarks/target/benchmarks.jar soedomoto.protoc.maven.ScaleHarness [files] [workDir]
+ * </pre>
+ */
+public class ScaleHarness {
+    private final int files;
+    private final File workDir;
+    private final List<String> failures = new ArrayList<String>();
+
+    static class Result {
+        long millis;
+        long protocInvocations;
+        long outputsWritten;
+        int filesChanged;
+    }
+
+    static class HarnessBuildContext extends DefaultBuildContext {
+        @Override
+        public void addMessage(File file, int line, int column, String message, int severity, Throwable cause) {
+            System.err.println(file + ":" + line + ":" + column + ": " + message);
+        }
+    }
+
+    ScaleHarness(int files, File workDir) {
+        this.files = files;
+        this.workDir = workDir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int files = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        File workDir = (args.length > 1) ? new File(args[1]) : SyntheticCorpus.createTempDir("pjmp-harness");
+        ScaleHarness harness = new ScaleHarness(files, workDir);
+        harness.run();
+        // thrown rather than exiting, so the build running the harness in process fails properly
+        if (!harness.failures.isEmpty()) throw new IllegalStateException("Budgets exceeded:\n    " + String.join("\n    ", harness.failures));
+        System.out.println("All budgets met");
+    }
+
+    void run() throws Exception {
+        System.out.println("Scale harness: " + files + " protos in " + workDir);
+        List<String[]> rows = new ArrayList<String[]>();
+
+        // one java target: the incremental paths
+        File project = new File(workDir, "single");
+        FileUtils.deleteQuietly(project);
+        List<File> protos = SyntheticCorpus.writeProtos(new File(project, "src/main/protobuf"), files, SyntheticCorpus.Layout.DEEP);
+        String[] singleTarget = {"java"};
+        rows.add(check("cold", run(project, singleTarget), scaled(60000), files, -1));
+        rows.add(check("noop", run(project, singleTarget), scaled(1500), 0, 0));
+        // the last proto is imported by nobody
+        edit(protos.get(files - 1));
+        rows.add(check("single-edit", run(project, singleTarget), scaled(2000), 1, 1));
+        // every proto imports its predecessor, so this one has ten transitive importers including itself
+        edit(protos.get(Math.max(0, files - 10)));
+        rows.add(check("import-edit", run(project, singleTarget), scaled(3000), 10, 10));
+
+        // several targets, shading rewrites the output of its target
+        File multiProject = new File(workDir, "multi");
+        FileUtils.deleteQuietly(multiProject);
+        List<File> multiProtos = SyntheticCorpus.writeProtos(new File(multiProject, "src/main/protobuf"), files, SyntheticCorpus.Layout.DEEP);
+        String[] multiTargets = {"java", "java-shaded", "python", "cpp", "descriptor"};
+        rows.add(check("multi-cold", run(multiProject, multiTargets), scaled(240000), (long) files * multiTargets.length, -1));
+        edit(multiProtos.get(files - 1));
+        // java, shaded java, python, descriptor: one file each, cpp: header and source
+        rows.add(check("multi-edit", run(multiProject, multiTargets), scaled(3000), multiTargets.length, multiTargets.length + 1));
+
+        System.out.println(String.format("%-14s %10s %8s %10s %10s %s", "scenario", "ms", "protoc", "written", "changed", "budget"));
+        for (String[] row : rows) System.out.println(String.format("%-14s %10s %8s %10s %10s %s", (Object[]) row));
+    }
+
+    private Result run(File projectDir, String[] types) throws Exception {
+        File outputRoot = new File(projectDir, "target/generated-sources");
+        Map<String, String> before = stamps(outputRoot);
+
+        Model model = new Model();
+        model.setPackaging("jar");
+        model.setBuild(new Build());
+        model.getBuild().setDirectory(new File(projectDir, "target").getAbsolutePath());
+        MavenProject project = new MavenProject(model);
+        project.setFile(new File(projectDir, "pom.xml"));
+
+        ProtocMojo mojo = newMojo(project, new File(projectDir, "src/main/protobuf"));
+        mojo.outputTargets = new OutputTarget[types.length];
+        for (int i = 0; i < types.length; i++) {
+            OutputTarget target = new OutputTarget();
+            target.type = types[i];
+            target.outputDirectory = new File(outputRoot, types[i]);
+            mojo.outputTargets[i] = target;
+        }
+
+        long start = System.nanoTime();
+        mojo.execute();
+        Result result = new Result();
+        result.millis = (System.nanoTime() - start) / 1000000L;
+        result.protocInvocations = mojo.getMetrics().get(BuildMetrics.PROTOC_INVOCATIONS);
+        result.outputsWritten = mojo.getMetrics().get(BuildMetrics.OUTPUTS_WRITTEN);
+
+        Map<String, String> after = stamps(outputRoot);
+        for (Map.Entry<String, String> entry : after.entrySet()) {
+            if (!entry.getValue().equals(before.get(entry.getKey()))) result.filesChanged++;
+        }
+        return result;
+    }
+
+    private static ProtocMojo newMojo(MavenProject project, File inputDir) throws Exception {
+        // the defaults Maven would inject from the @Parameter declarations
+        ProtocMojo mojo = new ProtocMojo();
+        mojo.project = project;
+        mojo.extension = "proto";
+        mojo.optimizeCodegen = true;
+        mojo.includeStdTypes = true;
+        mojo.includeMavenTypes = "none";
+        mojo.includeImports = true;
+        mojo.compileMavenTypes = "none";
+        mojo.addProtoSources = "none";
+        mojo.inputDirectories = new File[]{inputDir};
+        // the corpus imports by the path relative to the input root
+        mojo.includeDirectories = new File[]{inputDir};
+        mojo.batchSize = 500;
+        mojo.threads = 0;
+        mojo.fuseTargets = true;
+        mojo.executableCacheDirectory = new File(System.getProperty("user.home"), ".m2/protoc-maven-plugin/executables");
+        mojo.timingReportFile = new File(project.getBuild().getDirectory(), "pjmp-timing.json");
+        // the settings a large project would use
+        mojo.batchCompile = Boolean.parseBoolean(System.getProperty("harness.batchCompile", "true"));
+        mojo.parallel = Boolean.parseBoolean(System.getProperty("harness.parallel", "true"));
+        mojo.writeIfChanged = true;
+        setField(mojo, "buildContext", new HarnessBuildContext());
+        return mojo;
+    }
+
+    private static void edit(File proto) throws Exception {
+        String content = new String(Files.readAllBytes(proto.toPath()), "UTF-8");
+        content = content.replaceFirst("\\}\\s*$", "    string edited = 99;\n}\n");
+        Files.write(proto.toPath(), content.getBytes("UTF-8"));
+    }
+
+    /**
+     * Time budget in ms for a scenario, given for 2000 protos and scaled linearly, with a floor for fixed costs
+     */
+    private long scaled(long millis) {
+        return Math.max(1000L, millis * files / 2000L);
+    }
+
+    private String[] check(String scenario, Result result, long defaultMaxMillis, long defaultMaxProtoc, long defaultMaxWrites) {
+        long maxMillis = Long.getLong("harness." + scenario + ".millis", defaultMaxMillis);
+        long maxProtoc = Long.getLong("harness." + scenario + ".protoc", defaultMaxProtoc);
+        long maxWrites = Long.getLong("harness." + scenario + ".writes", defaultMaxWrites);
+        if (maxMillis >= 0 && result.millis > maxMillis) failures.add(scenario + ": " + result.millis + " ms > " + maxMillis + " ms");
+        if (maxProtoc >= 0 && result.protocInvocations > maxProtoc) failures.add(scenario + ": " + result.protocInvocations + " protoc runs > " + maxProtoc);
+        if (maxWrites >= 0 && result.filesChanged > maxWrites) failures.add(scenario + ": " + result.filesChanged + " files changed > " + maxWrites);
+        String budget = "ms<=" + limit(maxMillis) + " protoc<=" + limit(maxProtoc) + " changed<=" + limit(maxWrites);
+        return new String[]{scenario, String.valueOf(result.millis), String.valueOf(result.protocInvocations),
+                String.valueOf(result.outputsWritten), String.valueOf(result.filesChanged), budget};
+    }
+
+    private static String limit(long value) {
+        return (value >= 0) ? String.valueOf(value) : "-";
+    }
+
+    private static void setField(Object object, String name, Object value) throws Exception {
+        Field field = object.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(object, value);
+    }
+
+    private static Map<String, String> stamps(File dir) {
+        Map<String, String> stamps = new HashMap<String, String>();
+        if (!dir.isDirectory()) return stamps;
+        for (File file : FileUtils.listFiles(dir, null, true)) stamps.put(file.getPath(), file.length() + ":" + file.lastModified());
+        return stamps;
+    }
+}
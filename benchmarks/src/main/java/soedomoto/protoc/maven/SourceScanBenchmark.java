@@ -0,0 +1,51 @@
+package soedomoto.protoc.maven;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOCase;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discovery of the input protos: the snapshot walk against the recursive listing it replaced
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SourceScanBenchmark {
+    @Param({"1000", "10000", "50000"})
+    int files;
+    @Param({"FLAT", "DEEP"})
+    String layout;
+
+    File root;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = SyntheticCorpus.createTempDir("pjmp-scan");
+        SyntheticCorpus.writeProtos(root, files, SyntheticCorpus.Layout.valueOf(layout));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(root);
+    }
+
+    @Benchmark
+    public Object snapshotScan() throws IOException {
+        return SourceSnapshot.scan(new File[]{root}, "proto");
+    }
+
+    @Benchmark
+    public Collection<File> listFiles() {
+        return FileUtils.listFiles(root, new SuffixFileFilter(".proto", IOCase.INSENSITIVE), TrueFileFilter.INSTANCE);
+    }
+}
@@ -0,0 +1,92 @@
+package soedomoto.protoc.maven;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Generates proto trees and dependency jars for the benchmarks, deterministic for a given size and layout
+ */
+final class SyntheticCorpus {
+    enum Layout {
+        // everything in one directory
+        FLAT,
+        // four levels of eight directories, like a large package hierarchy
+        DEEP
+    }
+
+    private SyntheticCorpus() {
+    }
+
+    static File createTempDir(String prefix) throws IOException {
+        File dir = Files.createTempDirectory(prefix).toFile();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> FileUtils.deleteQuietly(dir)));
+        return dir;
+    }
+
+    /**
+     * Writes count protos below root, each importing up to two earlier ones by their name relative to root
+     */
+    static List<File> writeProtos(File root, int count, Layout layout) throws IOException {
+        List<String> names = new ArrayList<String>(count);
+        List<File> files = new ArrayList<File>(count);
+        for (int i = 0; i < count; i++) {
+            String name = protoName(i, layout);
+            StringBuilder sb = new StringBuilder();
+            sb.append("syntax = \"proto3\";\n\n");
+            sb.append("package bench.p").append(i).append(";\n\n");
+            // imports point back, so there are no cycles and shared imports fan out to many importers
+            if (i > 0) sb.append("import \"").append(names.get(i / 2)).append("\";\n");
+            if (i > 1) sb.append("import \"").append(names.get(i - 1)).append("\";\n");
+            sb.append("\n// message ").append(i).append("\nmessage M").append(i).append(" {\n");
+            sb.append("    string name = 1;\n    int64 id = 2;\n    repeated string tags = 3;\n}\n");
+
+            File file = new File(root, name);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), sb.toString().getBytes("UTF-8"));
+            names.add(name);
+            files.add(file);
+        }
+        return files;
+    }
+
+    static String protoName(int i, Layout layout) {
+        if (layout == Layout.FLAT) return "p" + i + ".proto";
+        return "a" + (i % 8) + "/b" + (i / 8 % 8) + "/c" + (i / 64 % 8) + "/d" + (i / 512 % 8) + "/p" + i + ".proto";
+    }
+
+    /**
+     * Writes a jar with the given number of protos next to some class files, protos may be 0 like most dependencies
+     */
+    static File writeJar(File file, int index, int protos, int classes) throws IOException {
+        file.getParentFile().mkdirs();
+        JarOutputStream out = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            for (int i = 0; i < classes; i++) {
+                out.putNextEntry(new JarEntry("bench/jar" + index + "/C" + i + ".class"));
+                out.write(new byte[512 + i % 512]);
+                out.closeEntry();
+            }
+            for (int i = 0; i < protos; i++) {
+                out.putNextEntry(new JarEntry("bench/jar" + index + "/p" + i + ".proto"));
+                out.write(("syntax = \"proto3\";\npackage bench.jar" + index + ";\nmessage J" + i + " { string name = 1; }\n").getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    static File writeRandomFile(File file, int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+}
@@ -0,0 +1,86 @@
+package soedomoto.protoc.maven;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The up-to-date check of a no-op build: scan, stat cache lookup and dependency hashes over the import graph.
+ * <p>
+ * {@code warmManifest} is the usual incremental build, {@code coldManifest} hashes and parses every file like the first
+ * build after a clean, {@code manifestRoundTrip} is the cost of persisting the state between builds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UpToDateCheckBenchmark {
+    @Param({"1000", "10000", "50000"})
+    int files;
+    @Param({"FLAT", "DEEP"})
+    String layout;
+
+    File root;
+    File manifestFile;
+    BuildManifest manifest;
+    Map<String, String> recorded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = SyntheticCorpus.createTempDir("pjmp-uptodate");
+        File inputDir = new File(root, "src");
+        SyntheticCorpus.writeProtos(inputDir, files, SyntheticCorpus.Layout.valueOf(layout));
+        manifestFile = new File(root, "pjmp-manifest.ser");
+
+        manifest = new BuildManifest();
+        recorded = dependencyHashes(manifest);
+        manifest.save(manifestFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(root);
+    }
+
+    @Benchmark
+    public int warmManifest() throws IOException {
+        return countStale(manifest);
+    }
+
+    @Benchmark
+    public int coldManifest() throws IOException {
+        return countStale(new BuildManifest());
+    }
+
+    @Benchmark
+    public Object manifestRoundTrip() throws IOException {
+        manifest.save(manifestFile);
+        return BuildManifest.load(manifestFile);
+    }
+
+    private int countStale(BuildManifest manifest) throws IOException {
+        int stale = 0;
+        for (Map.Entry<String, String> entry : dependencyHashes(manifest).entrySet()) {
+            if (!entry.getValue().equals(recorded.get(entry.getKey()))) stale++;
+        }
+        return stale;
+    }
+
+    private Map<String, String> dependencyHashes(BuildManifest manifest) throws IOException {
+        File inputDir = new File(root, "src");
+        SourceSnapshot snapshot = SourceSnapshot.scan(new File[]{inputDir}, "proto");
+        ImportGraph importGraph = new ImportGraph(manifest, new File[]{inputDir}, snapshot);
+        List<File> protoFiles = snapshot.files();
+        Map<String, String> hashes = new HashMap<String, String>(protoFiles.size() * 2);
+        for (File file : protoFiles) hashes.put(file.getAbsolutePath(), importGraph.dependencyHash(file));
+        return hashes;
+    }
+}
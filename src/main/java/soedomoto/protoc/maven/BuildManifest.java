@@ -0,0 +1,189 @@
+package soedomoto.protoc.maven;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Persistent record of the last code generation: content hashes and imports of inputs and includes, the
+ * configuration fingerprint of every output target and the files each of its protos produced
+ */
+class BuildManifest implements Serializable {
+    private static final long serialVersionUID = 5L;
+
+    final Map<String, FileState> files = new HashMap<String, FileState>();
+    // content hash -> import statements, a file is only scanned again when its content changes
+    final Map<String, List<String>> imports = new HashMap<String, List<String>>();
+    // reverse import graph of the last build, imported file -> importing files
+    final Map<String, Set<String>> importers = new TreeMap<String, Set<String>>();
+    final Map<String, TargetState> targets = new HashMap<String, TargetState>();
+    // protos with build messages (IDE markers), only these have anything to remove when they compile again
+    private final Set<String> messageFiles = new HashSet<String>();
+    // false for a new manifest, messages of earlier builds are unknown then
+    private boolean tracksMessages;
+    private transient Set<String> usedFiles;
+    // files whose content differs from the previous build, including files new to the manifest
+    private transient Set<String> changedFiles;
+
+    static class FileState implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final long size;
+        final long lastModified;
+        final String hash;
+
+        FileState(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    static class TargetState implements Serializable {
+        private static final long serialVersionUID = 3L;
+        final String fingerprint;
+        // compiled proto path -> dependency hash (see ImportGraph) at the time it was compiled
+        final Map<String, String> sources = new HashMap<String, String>();
+        // compiled proto path -> files generated from it
+        final Map<String, Set<String>> outputs = new HashMap<String, Set<String>>();
+        // compiled proto path -> its share of the protoc time of its last compilation, in nanoseconds
+        final Map<String, Long> costs = new HashMap<String, Long>();
+
+        TargetState(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    static BuildManifest load(File file) {
+        if (!file.isFile()) return new BuildManifest();
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return (BuildManifest) in.readObject();
+        } catch (Exception e) {
+            // unreadable or written by an incompatible version, start over
+            return new BuildManifest();
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException e) { }
+        }
+    }
+
+    synchronized void save(File file) throws IOException {
+        // forget files that were not looked at in this build, e.g. removed protos or old temp directories
+        files.keySet().retainAll(usedFiles());
+        messageFiles.retainAll(usedFiles());
+        tracksMessages = true;
+        Set<String> usedHashes = new HashSet<String>();
+        for (FileState state : files.values()) usedHashes.add(state.hash);
+        imports.keySet().retainAll(usedHashes);
+        file.getParentFile().mkdirs();
+        File tmpFile = new File(file.getPath() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeObject(this);
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Starts another build on a loaded manifest, the files used and changed are tracked per build
+     */
+    synchronized void startBuild() {
+        usedFiles = null;
+        changedFiles = null;
+    }
+
+    /**
+     * Returns the content hash of the file, only reading it if size or modification time differ from the manifest
+     */
+    String hash(File file) throws IOException {
+        return hash(file, file.length(), file.lastModified());
+    }
+
+    synchronized String hash(File file, long size, long lastModified) throws IOException {
+        String key = file.getAbsolutePath();
+        usedFiles().add(key);
+        FileState state = files.get(key);
+        if (state != null && state.size == size && state.lastModified == lastModified) return state.hash;
+        String hash = sha1(file);
+        if (state == null || !state.hash.equals(hash)) changedFiles().add(key);
+        files.put(key, new FileState(size, lastModified, hash));
+        return hash;
+    }
+
+    /**
+     * Returns whether the content of the file changed since the previous build, as far as it was hashed in this one
+     */
+    synchronized boolean isChanged(File file) {
+        return changedFiles().contains(file.getAbsolutePath());
+    }
+
+    synchronized void addMessages(File file) {
+        messageFiles.add(file.getAbsolutePath());
+    }
+
+    /**
+     * Forgets the messages of the file, returns false if it is known to have none
+     */
+    synchronized boolean removeMessages(File file) {
+        return messageFiles.remove(file.getAbsolutePath()) || !tracksMessages;
+    }
+
+    /**
+     * Returns the import statements of the file with the given content hash, scanning it only for unknown content
+     */
+    synchronized List<String> imports(File file, String hash) throws IOException {
+        List<String> names = imports.get(hash);
+        if (names == null) imports.put(hash, names = new ArrayList<String>(ProtoImportScanner.scanImports(file)));
+        return names;
+    }
+
+    private Set<String> usedFiles() {
+        if (usedFiles == null) usedFiles = new HashSet<String>();
+        return usedFiles;
+    }
+
+    private Set<String> changedFiles() {
+        if (changedFiles == null) changedFiles = new HashSet<String>();
+        return changedFiles;
+    }
+
+    static String sha1(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(buf)) > 0) digest.update(buf, 0, read);
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    static String sha1(String s) {
+        try {
+            return toHex(newDigest().digest(s.getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,198 @@
+package soedomoto.protoc.maven;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Wall time, file counts and bytes of one plugin execution, per phase, per protoc (or plugin) invocation and per
+ * output target.
+ * <p>
+ * Phases are accumulated, a phase entered several times (e.g. shading per target) sums up. Counters are free-form
+ * names such as {@code protocInvocations}. An invocation generating several targets at once counts its files for each
+ * of them and splits its time evenly between them. Everything is thread safe, invocations record themselves from the
+ * workers.
+ */
+class BuildMetrics {
+    static final String PROTOC_INVOCATIONS = "protocInvocations";
+    static final String PLUGIN_INVOCATIONS = "pluginInvocations";
+    static final String OUTPUTS_WRITTEN = "outputsWritten";
+    static final String OUTPUT_BYTES_WRITTEN = "outputBytesWritten";
+    static final String OUTPUTS_UNCHANGED = "outputsUnchanged";
+    static final String OUTPUTS_REMOVED = "outputsRemoved";
+    static final String OUTPUT_BYTES_REMOVED = "outputBytesRemoved";
+    // std types and dependency protos written below target/
+    static final String PROTOS_EXTRACTED = "protosExtracted";
+    static final String PROTO_BYTES_EXTRACTED = "protoBytesExtracted";
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+    private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+    private final List<Unit> units = new ArrayList<Unit>();
+
+    static final class Phase {
+        long nanos;
+        int count;
+        long files;
+        long bytes;
+    }
+
+    static final class Unit {
+        final String label;
+        final String types;
+        // output targets generated by the invocation, see ProtocMojo.targetName
+        final List<String> targets;
+        final int files;
+        final long nanos;
+
+        Unit(String label, String types, List<String> targets, int files, long nanos) {
+            this.label = label;
+            this.types = types;
+            this.targets = targets;
+            this.files = files;
+            this.nanos = nanos;
+        }
+    }
+
+    static final class TargetTotal {
+        int invocations;
+        long files;
+        long nanos;
+    }
+
+    /**
+     * Records a phase that started at startNanos ({@link System#nanoTime()}) and ends now
+     */
+    synchronized void phase(String name, long startNanos, long files, long bytes) {
+        Phase phase = phases.get(name);
+        if (phase == null) phases.put(name, phase = new Phase());
+        phase.nanos += System.nanoTime() - startNanos;
+        phase.count++;
+        phase.files += files;
+        phase.bytes += bytes;
+    }
+
+    synchronized void unit(String label, String types, List<String> targets, int files, long startNanos) {
+        units.add(new Unit(label, types, targets, files, System.nanoTime() - startNanos));
+    }
+
+    synchronized void count(String counter, long delta) {
+        Long value = counters.get(counter);
+        counters.put(counter, ((value != null) ? value : 0L) + delta);
+    }
+
+    synchronized long get(String counter) {
+        Long value = counters.get(counter);
+        return (value != null) ? value : 0L;
+    }
+
+    /**
+     * Totals of the invocations per output target, in the order the targets were first generated
+     */
+    synchronized Map<String, TargetTotal> targetTotals() {
+        Map<String, TargetTotal> totals = new LinkedHashMap<String, TargetTotal>();
+        for (Unit unit : units) {
+            for (String target : unit.targets) {
+                TargetTotal total = totals.get(target);
+                if (total == null) totals.put(target, total = new TargetTotal());
+                total.invocations++;
+                total.files += unit.files;
+                total.nanos += unit.nanos / unit.targets.size();
+            }
+        }
+        return totals;
+    }
+
+    synchronized List<Unit> slowestUnits(int limit) {
+        List<Unit> sorted = new ArrayList<Unit>(units);
+        sorted.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+        return sorted.subList(0, Math.min(limit, sorted.size()));
+    }
+
+    synchronized void write(File file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"totalMillis\": ").append(millis(System.nanoTime() - startNanos)).append(",\n");
+        sb.append("  \"phases\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+            Phase phase = entry.getValue();
+            sb.append(separator).append("    ").append(quote(entry.getKey())).append(": {\"millis\": ").append(millis(phase.nanos))
+                    .append(", \"count\": ").append(phase.count).append(", \"files\": ").append(phase.files)
+                    .append(", \"bytes\": ").append(phase.bytes).append('}');
+            separator = ",\n";
+        }
+        sb.append("\n  },\n  \"counters\": {");
+        separator = "\n";
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            sb.append(separator).append("    ").append(quote(entry.getKey())).append(": ").append(entry.getValue());
+            separator = ",\n";
+        }
+        sb.append("\n  },\n  \"invocations\": [");
+        separator = "\n";
+        for (Unit unit : slowestUnits(units.size())) {
+            sb.append(separator).append("    {\"label\": ").append(quote(unit.label)).append(", \"types\": ").append(quote(unit.types))
+                    .append(", \"files\": ").append(unit.files).append(", \"millis\": ").append(millis(unit.nanos)).append('}');
+            separator = ",\n";
+        }
+        sb.append("\n  ],\n  \"targets\": {");
+        separator = "\n";
+        for (Map.Entry<String, TargetTotal> entry : targetTotals().entrySet()) {
+            TargetTotal total = entry.getValue();
+            sb.append(separator).append("    ").append(quote(entry.getKey())).append(": {\"invocations\": ").append(total.invocations)
+                    .append(", \"files\": ").append(total.files).append(", \"millis\": ").append(millis(total.nanos)).append('}');
+            separator = ",\n";
+        }
+        sb.append("\n  }\n}\n");
+
+        file.getParentFile().mkdirs();
+        File tmpFile = new File(file.getPath() + ".tmp");
+        Files.write(tmpFile.toPath(), sb.toString().getBytes("UTF-8"));
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    synchronized void log(Log log, int slowest) {
+        log.info("Protoc timing (total " + millis(System.nanoTime() - startNanos) + " ms):");
+        log.info(String.format("    %-20s %10s %8s %12s", "phase", "ms", "files", "bytes"));
+        for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+            Phase phase = entry.getValue();
+            log.info(String.format("    %-20s %10d %8d %12d", entry.getKey(), millis(phase.nanos), phase.files, phase.bytes));
+        }
+        if (!counters.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                sb.append((sb.length() > 0) ? ", " : "").append(entry.getKey()).append('=').append(entry.getValue());
+            }
+            log.info("    " + sb);
+        }
+        Map<String, TargetTotal> totals = targetTotals();
+        if (!totals.isEmpty()) {
+            log.info("    Targets:");
+            for (Map.Entry<String, TargetTotal> entry : totals.entrySet()) {
+                TargetTotal total = entry.getValue();
+                log.info(String.format("    %10d ms  %d files in %d invocations  %s", millis(total.nanos), total.files, total.invocations, entry.getKey()));
+            }
+        }
+        List<Unit> slowestUnits = slowestUnits(slowest);
+        if (!slowestUnits.isEmpty()) {
+            log.info("    Slowest invocations:");
+            for (Unit unit : slowestUnits) log.info(String.format("    %10d ms  %s: %s", millis(unit.nanos), unit.types, unit.label));
+        }
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000L;
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,272 @@
+package soedomoto.protoc.maven;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Maintains a tree of .proto files extracted from dependency artifacts.
+ * <p>
+ * A persisted index records, per artifact path, size and modification time, which protos the artifact contains and
+ * where each file of the tree came from. Unchanged artifacts are not opened again, jars are read through the zip
+ * central directory and only entries that changed are written. The protos of a jar are read once per JVM and shared
+ * by all modules depending on it.
+ * <p>
+ * Artifacts are scanned and protos written in parallel. When several artifacts contain the same path the first one in
+ * dependency order wins, like on the classpath, and a differing content is reported as a conflict.
+ */
+class DependencyProtoExtractor {
+    private final File dir;
+    private final File indexFile;
+    private final String extension;
+    private final Log log;
+    private final int threads;
+    private final boolean failOnConflict;
+    // protos written by extract, unchanged ones are not counted
+    final AtomicInteger written = new AtomicInteger();
+    final AtomicLong bytesWritten = new AtomicLong();
+
+    static class Index implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final Map<String, ArtifactEntry> artifacts = new HashMap<String, ArtifactEntry>();
+        // proto path in the tree -> source it was extracted from
+        final Map<String, String> extracted = new HashMap<String, String>();
+    }
+
+    static class ArtifactEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final long size;
+        final long lastModified;
+        // proto path -> stamp of the source, empty for artifacts without protos
+        final Map<String, String> protos = new LinkedHashMap<String, String>();
+
+        ArtifactEntry(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    DependencyProtoExtractor(File dir, String extension, Log log, int threads, boolean failOnConflict) {
+        this.dir = dir;
+        this.indexFile = new File(dir.getPath() + ".index");
+        this.extension = extension;
+        this.log = log;
+        this.threads = threads;
+        this.failOnConflict = failOnConflict;
+    }
+
+    /**
+     * Extracts the protos of the given artifacts, which are in dependency order
+     */
+    void extract(List<File> artifactFiles) throws IOException {
+        Index index = loadIndex();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            // the parallel stream keeps the order of the artifacts
+            List<ArtifactEntry> entries = run(pool, () -> artifactFiles.parallelStream()
+                    .map(artifactFile -> scan(artifactFile, index.artifacts.get(artifactFile.getAbsolutePath())))
+                    .collect(Collectors.toList()));
+
+            Map<String, ArtifactEntry> artifacts = new HashMap<String, ArtifactEntry>();
+            Map<String, File> owners = new LinkedHashMap<String, File>();
+            Map<String, List<File>> duplicates = new TreeMap<String, List<File>>();
+            for (int i = 0; i < artifactFiles.size(); i++) {
+                File artifactFile = artifactFiles.get(i);
+                ArtifactEntry entry = entries.get(i);
+                if (entry == null) continue;
+                artifacts.put(artifactFile.getAbsolutePath(), entry);
+                for (String name : entry.protos.keySet()) {
+                    File owner = owners.putIfAbsent(name, artifactFile);
+                    if (owner != null) duplicates.computeIfAbsent(name, k -> new ArrayList<File>(Collections.singletonList(owner))).add(artifactFile);
+                }
+            }
+            checkConflicts(pool, duplicates);
+
+            dir.mkdirs();
+            Map<String, String> extracted = new HashMap<String, String>();
+            List<Map.Entry<String, File>> writes = new ArrayList<Map.Entry<String, File>>();
+            for (Map.Entry<String, File> owner : owners.entrySet()) {
+                String name = owner.getKey();
+                File artifactFile = owner.getValue();
+                String source = artifactFile.getAbsolutePath() + "!" + name + "@" + artifacts.get(artifactFile.getAbsolutePath()).protos.get(name);
+                if (!source.equals(index.extracted.get(name)) || !new File(dir, name).isFile()) writes.add(owner);
+                extracted.put(name, source);
+            }
+            run(pool, () -> {
+                writes.parallelStream().forEach(owner -> {
+                    log.info("    " + owner.getKey());
+                    try {
+                        File protoOut = new File(dir, owner.getKey());
+                        writeProtoFile(owner.getValue(), owner.getKey(), protoOut);
+                        written.incrementAndGet();
+                        bytesWritten.addAndGet(protoOut.length());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                return null;
+            });
+            saveExtracted(index, artifacts, extracted);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void saveExtracted(Index index, Map<String, ArtifactEntry> artifacts, Map<String, String> extracted) throws IOException {
+        for (String name : index.extracted.keySet()) {
+            if (!extracted.containsKey(name)) new File(dir, name).delete();
+        }
+
+        index.artifacts.clear();
+        index.artifacts.putAll(artifacts);
+        index.extracted.clear();
+        index.extracted.putAll(extracted);
+        saveIndex(index);
+    }
+
+    /**
+     * Compares the content of protos contained in several artifacts, identical copies are fine
+     */
+    private void checkConflicts(ForkJoinPool pool, Map<String, List<File>> duplicates) throws IOException {
+        if (duplicates.isEmpty()) return;
+        List<String> conflicts = run(pool, () -> duplicates.entrySet().parallelStream().map(duplicate -> {
+            try {
+                byte[] winner = readProto(duplicate.getValue().get(0), duplicate.getKey());
+                for (File other : duplicate.getValue().subList(1, duplicate.getValue().size())) {
+                    if (!Arrays.equals(winner, readProto(other, duplicate.getKey()))) {
+                        return duplicate.getKey() + " differs between " + duplicate.getValue() + ", using " + duplicate.getValue().get(0);
+                    }
+                }
+                return null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).filter(Objects::nonNull).collect(Collectors.toList()));
+
+        if (conflicts.isEmpty()) return;
+        if (failOnConflict) throw new IOException("Conflicting protos in dependencies:\n    " + String.join("\n    ", conflicts));
+        for (String conflict : conflicts) log.warn("Conflicting proto in dependencies: " + conflict);
+    }
+
+    private static <T> T run(ForkJoinPool pool, Callable<T> task) throws IOException {
+        try {
+            return pool.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private ArtifactEntry scan(File artifactFile, ArtifactEntry previous) {
+        log.debug("  Scanning artifact: " + artifactFile);
+        try {
+            if (artifactFile.isDirectory()) {
+                // reactor modules, no cheap way to tell whether anything below changed
+                ArtifactEntry entry = new ArtifactEntry(0, 0);
+                for (SourceSnapshot.Entry f : SourceSnapshot.scan(new File[]{artifactFile}, extension).entries()) {
+                    String name = artifactFile.getAbsoluteFile().toURI().relativize(f.file.toURI()).getPath();
+                    entry.protos.put(name, f.size + ":" + f.lastModified);
+                }
+                return entry;
+            }
+
+            long size = artifactFile.length();
+            long lastModified = artifactFile.lastModified();
+            if (previous != null && previous.size == size && previous.lastModified == lastModified) return previous;
+
+            ArtifactEntry entry = new ArtifactEntry(size, lastModified);
+            for (String name : readProtos(artifactFile).keySet()) entry.protos.put(name, size + ":" + lastModified);
+            return entry;
+        } catch (IOException e) {
+            log.info("  Error scanning artifact: " + artifactFile + ": " + e);
+            return null;
+        }
+    }
+
+    private void writeProtoFile(File artifactFile, String name, File protoOut) throws IOException {
+        if (artifactFile.isDirectory()) {
+            // reactor modules are linked, not copied
+            FileStaging.stage(new File(artifactFile, name), protoOut);
+            return;
+        }
+        protoOut.getParentFile().mkdirs();
+        // may be a link into a reactor module from an earlier build, never write through it
+        Files.deleteIfExists(protoOut.toPath());
+        Files.write(protoOut.toPath(), readProtos(artifactFile).get(name));
+    }
+
+    private byte[] readProto(File artifactFile, String name) throws IOException {
+        if (artifactFile.isDirectory()) return Files.readAllBytes(new File(artifactFile, name).toPath());
+        return readProtos(artifactFile).get(name);
+    }
+
+    /**
+     * Reads the protos of a jar through its central directory, shared by all modules of the reactor that depend on it
+     */
+    private Map<String, byte[]> readProtos(File artifactFile) throws IOException {
+        String slot = "artifact-protos|" + extension + "|" + artifactFile.getAbsolutePath();
+        String key = slot + "|" + artifactFile.length() + "|" + artifactFile.lastModified();
+        return ReactorCache.get(slot, key, () -> {
+            Map<String, byte[]> protos = new LinkedHashMap<String, byte[]>();
+            ZipFile zipFile = new ZipFile(artifactFile);
+            try {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry ze = entries.nextElement();
+                    if (ze.isDirectory() || !ze.getName().toLowerCase().endsWith(extension)) continue;
+                    InputStream is = zipFile.getInputStream(ze);
+                    try {
+                        protos.put(ze.getName(), IOUtils.toByteArray(is));
+                    } finally {
+                        is.close();
+                    }
+                }
+            } finally {
+                zipFile.close();
+            }
+            return Collections.unmodifiableMap(protos);
+        }, null);
+    }
+
+    private Index loadIndex() {
+        if (!indexFile.isFile() || !dir.isDirectory()) return new Index();
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            return (Index) in.readObject();
+        } catch (Exception e) {
+            return new Index();
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException e) { }
+        }
+    }
+
+    private void saveIndex(Index index) throws IOException {
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeObject(index);
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,281 @@
+package soedomoto.protoc.maven;
+
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.google.protobuf.compiler.PluginProtos.CodeGeneratorRequest;
+import com.google.protobuf.compiler.PluginProtos.CodeGeneratorResponse;
+import com.google.protobuf.compiler.PluginProtos.Version;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Descriptor sets of the inputs, produced by one protoc run and cached in target/, fed directly to protoc-gen-*
+ * plugins as {@code CodeGeneratorRequest} so several plugin targets don't parse the schemas again.
+ * <p>
+ * Descriptors are kept per parent directory of the compiled files, as that directory is part of the protoc include
+ * path and the same file name may mean different files in different directories.
+ */
+class DescriptorFanOut {
+    private final File dir;
+    private final Map<File, Map<String, FileDescriptorProto>> groups = new HashMap<File, Map<String, FileDescriptorProto>>();
+
+    DescriptorFanOut(File dir) {
+        this.dir = dir;
+    }
+
+    File dir() {
+        return dir;
+    }
+
+    File descriptorFile(File parent) {
+        return new File(dir, BuildManifest.sha1(parent.getAbsolutePath()) + ".desc");
+    }
+
+    /**
+     * Loads the cached descriptors of a directory and replaces those just compiled into compiledSet, keeping only
+     * what the given root names still need
+     */
+    synchronized void update(File parent, File compiledSet, Collection<String> rootNames) throws IOException {
+        Map<String, FileDescriptorProto> descriptors = new LinkedHashMap<String, FileDescriptorProto>();
+        File cacheFile = descriptorFile(parent);
+        if (cacheFile.isFile()) {
+            for (FileDescriptorProto fdp : readSet(cacheFile).getFileList()) descriptors.put(fdp.getName(), fdp);
+        }
+        if (compiledSet != null) {
+            for (FileDescriptorProto fdp : readSet(compiledSet).getFileList()) descriptors.put(fdp.getName(), fdp);
+        }
+
+        Map<String, FileDescriptorProto> retained = new LinkedHashMap<String, FileDescriptorProto>();
+        for (String name : rootNames) {
+            if (descriptors.containsKey(name)) collect(name, descriptors, retained);
+        }
+        groups.put(parent, retained);
+
+        dir.mkdirs();
+        File tmpFile = File.createTempFile("descriptors", ".tmp", dir);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile));
+        try {
+            FileDescriptorSet.newBuilder().addAllFile(retained.values()).build().writeTo(out);
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns the descriptors of the given files and all their imports, dependencies first
+     */
+    synchronized List<FileDescriptorProto> closure(File parent, Collection<String> names) throws IOException {
+        Map<String, FileDescriptorProto> descriptors = groups.get(parent);
+        if (descriptors == null) throw new IOException("No descriptors compiled for " + parent);
+        Map<String, FileDescriptorProto> closure = new LinkedHashMap<String, FileDescriptorProto>();
+        for (String name : names) {
+            if (!descriptors.containsKey(name)) throw new IOException("No descriptor compiled for " + name + " in " + parent);
+            collect(name, descriptors, closure);
+        }
+        return new ArrayList<FileDescriptorProto>(closure.values());
+    }
+
+    private static void collect(String name, Map<String, FileDescriptorProto> descriptors, Map<String, FileDescriptorProto> result) {
+        if (result.containsKey(name)) return;
+        FileDescriptorProto fdp = descriptors.get(name);
+        if (fdp == null) return;
+        for (String dependency : fdp.getDependencyList()) collect(dependency, descriptors, result);
+        result.put(name, fdp);
+    }
+
+    /**
+     * Builds the request protoc would send: source info only for the files to generate, json names filled in
+     */
+    static CodeGeneratorRequest request(List<FileDescriptorProto> closure, Collection<String> filesToGenerate, String parameter, String protocVersion) {
+        CodeGeneratorRequest.Builder request = CodeGeneratorRequest.newBuilder();
+        for (String name : filesToGenerate) request.addFileToGenerate(name);
+        if (parameter != null) request.setParameter(parameter);
+        for (FileDescriptorProto fdp : closure) {
+            FileDescriptorProto.Builder builder = fdp.toBuilder();
+            if (!filesToGenerate.contains(fdp.getName())) builder.clearSourceCodeInfo();
+            for (DescriptorProto.Builder message : builder.getMessageTypeBuilderList()) addJsonNames(message);
+            for (FieldDescriptorProto.Builder field : builder.getExtensionBuilderList()) addJsonName(field);
+            request.addProtoFile(builder.build());
+        }
+        request.setCompilerVersion(compilerVersion(protocVersion));
+        return request.build();
+    }
+
+    /**
+     * Runs the plugin and writes the generated files below outputDir
+     */
+    static void generate(String command, CodeGeneratorRequest request, File outputDir) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).start();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Thread errReader = drain(process.getErrorStream(), err);
+        CodeGeneratorResponse response;
+        try {
+            OutputStream in = process.getOutputStream();
+            try {
+                request.writeTo(in);
+            } finally {
+                in.close();
+            }
+            response = CodeGeneratorResponse.parseFrom(process.getInputStream());
+        } catch (IOException e) {
+            process.destroy();
+            throw new IOException(command + " failed: " + e.getMessage() + " " + err.toString().trim(), e);
+        }
+        int ret = process.waitFor();
+        errReader.join();
+        if (ret != 0) throw new IOException(command + " exited with " + ret + ": " + err.toString().trim());
+        if (response.hasError() && !response.getError().isEmpty()) throw new IOException(command + ": " + response.getError());
+
+        // an empty name continues the previous file, insertion points go into a file generated earlier in the response
+        Map<String, StringBuilder> files = new LinkedHashMap<String, StringBuilder>();
+        String previous = null;
+        for (CodeGeneratorResponse.File file : response.getFileList()) {
+            String name = file.getName().isEmpty() ? previous : file.getName();
+            if (name == null) throw new IOException(command + " produced file content without a name");
+            StringBuilder content = files.get(name);
+            if (!file.getInsertionPoint().isEmpty()) {
+                if (content == null) throw new IOException(command + " inserts into " + name + " which was not generated");
+                insert(content, file.getInsertionPoint(), file.getContent(), name);
+            } else if (file.getName().isEmpty() && content != null) {
+                content.append(file.getContent());
+            } else {
+                files.put(name, new StringBuilder(file.getContent()));
+            }
+            previous = name;
+        }
+
+        for (Map.Entry<String, StringBuilder> entry : files.entrySet()) {
+            File output = new File(outputDir, entry.getKey());
+            output.getParentFile().mkdirs();
+            Files.write(output.toPath(), entry.getValue().toString().getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * Writes a descriptor set like protoc's --descriptor_set_out, without source info
+     */
+    static void writeSet(List<FileDescriptorProto> descriptors, File file) throws IOException {
+        writeSet(descriptors, file, false);
+    }
+
+    static void writeSet(List<FileDescriptorProto> descriptors, File file, boolean sourceInfo) throws IOException {
+        FileDescriptorSet.Builder set = FileDescriptorSet.newBuilder();
+        for (FileDescriptorProto fdp : descriptors) set.addFile(sourceInfo ? fdp : fdp.toBuilder().clearSourceCodeInfo().build());
+        file.getParentFile().mkdirs();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            set.build().writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the fully qualified name and file of every message and enum, sorted by name, for lookups without parsing
+     * the set
+     */
+    static void writeIndex(List<FileDescriptorProto> descriptors, File file) throws IOException {
+        Map<String, String> index = new TreeMap<String, String>();
+        for (FileDescriptorProto fdp : descriptors) {
+            String prefix = fdp.getPackage().isEmpty() ? "" : fdp.getPackage() + ".";
+            for (DescriptorProto message : fdp.getMessageTypeList()) addToIndex(index, prefix, message, fdp.getName());
+            for (EnumDescriptorProto enumType : fdp.getEnumTypeList()) index.put(prefix + enumType.getName(), fdp.getName());
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : index.entrySet()) sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), sb.toString().getBytes("UTF-8"));
+    }
+
+    private static void addToIndex(Map<String, String> index, String prefix, DescriptorProto message, String fileName) {
+        String name = prefix + message.getName();
+        index.put(name, fileName);
+        for (DescriptorProto nested : message.getNestedTypeList()) addToIndex(index, name + ".", nested, fileName);
+        for (EnumDescriptorProto enumType : message.getEnumTypeList()) index.put(name + "." + enumType.getName(), fileName);
+    }
+
+    static FileDescriptorSet readSet(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return FileDescriptorSet.parseFrom(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    static void insert(StringBuilder content, String insertionPoint, String insertion, String name) throws IOException {
+        String marker = "@@protoc_insertion_point(" + insertionPoint + ")";
+        int pos = content.indexOf(marker);
+        if (pos < 0) throw new IOException("Insertion point '" + insertionPoint + "' not found in " + name);
+        int lineStart = content.lastIndexOf("\n", pos) + 1;
+        // like protoc, the inserted lines get the indentation of the marker line
+        int indentEnd = lineStart;
+        while (indentEnd < pos && Character.isWhitespace(content.charAt(indentEnd))) indentEnd++;
+        String indent = content.substring(lineStart, indentEnd);
+        StringBuilder indented = new StringBuilder();
+        for (String line : insertion.split("\n", -1)) {
+            if (indented.length() > 0) indented.append('\n');
+            if (!line.isEmpty()) indented.append(indent);
+            indented.append(line);
+        }
+        if (indented.length() > 0 && indented.charAt(indented.length() - 1) != '\n') indented.append('\n');
+        content.insert(lineStart, indented);
+    }
+
+    private static void addJsonNames(DescriptorProto.Builder message) {
+        for (FieldDescriptorProto.Builder field : message.getFieldBuilderList()) addJsonName(field);
+        for (FieldDescriptorProto.Builder field : message.getExtensionBuilderList()) addJsonName(field);
+        for (DescriptorProto.Builder nested : message.getNestedTypeBuilderList()) addJsonNames(nested);
+    }
+
+    static void addJsonName(FieldDescriptorProto.Builder field) {
+        if (field.hasJsonName()) return;
+        // protoc's ToJsonName: drop underscores and capitalize the following letter
+        StringBuilder sb = new StringBuilder();
+        boolean capitalizeNext = false;
+        for (char c : field.getName().toCharArray()) {
+            if (c == '_') {
+                capitalizeNext = true;
+            } else {
+                sb.append(capitalizeNext ? Character.toUpperCase(c) : c);
+                capitalizeNext = false;
+            }
+        }
+        field.setJsonName(sb.toString());
+    }
+
+    private static Version compilerVersion(String protocVersion) {
+        Version.Builder version = Version.newBuilder();
+        String[] parts = (protocVersion != null) ? protocVersion.split("[.-]") : new String[0];
+        try {
+            if (parts.length > 0) version.setMajor(Integer.parseInt(parts[0]));
+            if (parts.length > 1) version.setMinor(Integer.parseInt(parts[1]));
+            if (parts.length > 2) version.setPatch(Integer.parseInt(parts[2]));
+        } catch (NumberFormatException e) {
+            // leave the rest unset
+        }
+        return version.build();
+    }
+
+    private static Thread drain(InputStream in, OutputStream out) {
+        Thread thread = new Thread(() -> {
+            try {
+                byte[] buf = new byte[4096];
+                int read;
+                while ((read = in.read(buf)) > 0) out.write(buf, 0, read);
+            } catch (IOException e) {
+                // process went away
+            }
+        }, "protoc-plugin-stderr");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,161 @@
+package soedomoto.protoc.maven;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shared cache of protoc and plugin executables, keyed by name, version, platform classifier and checksum.
+ * <p>
+ * Entries live in {@code <dir>/<name>/<version>/<classifier>/<sha1>/} and are published with an atomic move while
+ * holding a file lock, so several builds can use the cache at once. The result of the exec probe is kept with the
+ * entry, warm builds neither extract nor probe.
+ */
+class ExecutableCache {
+    // FileLock is per process, threads of one JVM need their own lock on top
+    private static final ConcurrentMap<String, Object> JVM_LOCKS = new ConcurrentHashMap<String, Object>();
+
+    private final File dir;
+
+    interface Source {
+        /**
+         * Provides the executable, temporary files may be created in workDir which is deleted afterwards
+         */
+        File provide(File workDir) throws IOException;
+    }
+
+    static class Entry {
+        final File file;
+        private final File propertiesFile;
+        private final Properties properties;
+
+        private Entry(File file, File propertiesFile, Properties properties) {
+            this.file = file;
+            this.propertiesFile = propertiesFile;
+            this.properties = properties;
+        }
+
+        boolean isProbed() {
+            return properties.getProperty("probe") != null;
+        }
+
+        boolean isRunnable() {
+            return "ok".equals(properties.getProperty("probe"));
+        }
+
+        void recordProbe(boolean runnable) throws IOException {
+            properties.setProperty("probe", runnable ? "ok" : "failed");
+            writeProperties(propertiesFile, properties);
+        }
+    }
+
+    ExecutableCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Returns the cached executable, sourceStamp identifies the source cheaply (e.g. path, size and mtime of an
+     * artifact) and may be null if the source is fully identified by name, version and classifier
+     */
+    Entry get(String name, String version, String classifier, String sourceStamp, Source source) throws IOException {
+        File entryDir = new File(dir, safe(name) + File.separator + safe(version) + File.separator + safe(classifier));
+        // later modules of the reactor get the entry from memory, as long as the file is still there
+        String slot = "executable|" + entryDir.getAbsolutePath();
+        return ReactorCache.get(slot, slot + "|" + sourceStamp, () -> lookup(entryDir, name, sourceStamp, source), entry -> entry.file.isFile());
+    }
+
+    private static Entry lookup(File entryDir, String name, String sourceStamp, Source source) throws IOException {
+        entryDir.mkdirs();
+        File propertiesFile = new File(entryDir, "entry.properties");
+
+        Object jvmLock = JVM_LOCKS.computeIfAbsent(entryDir.getAbsolutePath(), k -> new Object());
+        synchronized (jvmLock) {
+            FileChannel channel = FileChannel.open(new File(entryDir, ".lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                FileLock lock = channel.lock();
+                try {
+                    Properties properties = readProperties(propertiesFile);
+                    File cached = cachedFile(entryDir, properties, sourceStamp);
+                    if (cached != null) return new Entry(cached, propertiesFile, properties);
+                    return populate(entryDir, name, propertiesFile, sourceStamp, source);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private static File cachedFile(File entryDir, Properties properties, String sourceStamp) {
+        String sha1 = properties.getProperty("sha1");
+        String fileName = properties.getProperty("file");
+        if (sha1 == null || fileName == null) return null;
+        if (sourceStamp != null && !sourceStamp.equals(properties.getProperty("source"))) return null;
+        File file = new File(entryDir, sha1 + File.separator + fileName);
+        if (!file.isFile() || !String.valueOf(file.length()).equals(properties.getProperty("size"))) return null;
+        return file;
+    }
+
+    private static Entry populate(File entryDir, String name, File propertiesFile, String sourceStamp, Source source) throws IOException {
+        File workDir = Files.createTempDirectory(entryDir.toPath(), "work").toFile();
+        try {
+            File sourceFile = source.provide(workDir);
+            String sha1 = BuildManifest.sha1(sourceFile);
+            File target = new File(entryDir, sha1 + File.separator + safe(name) + ".exe");
+            if (!target.isFile() || target.length() != sourceFile.length()) {
+                target.getParentFile().mkdirs();
+                File tmpFile = new File(workDir, "publish.exe");
+                // never a link, the entry outlives the artifact and gets its own permissions
+                FileStaging.transfer(sourceFile, tmpFile);
+                tmpFile.setExecutable(true);
+                Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            Properties properties = new Properties();
+            properties.setProperty("sha1", sha1);
+            properties.setProperty("file", target.getName());
+            properties.setProperty("size", String.valueOf(target.length()));
+            if (sourceStamp != null) properties.setProperty("source", sourceStamp);
+            writeProperties(propertiesFile, properties);
+            return new Entry(target, propertiesFile, properties);
+        } finally {
+            FileUtils.deleteQuietly(workDir);
+        }
+    }
+
+    private static Properties readProperties(File file) throws IOException {
+        Properties properties = new Properties();
+        if (!file.isFile()) return properties;
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    private static void writeProperties(File file, Properties properties) throws IOException {
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        OutputStream out = new FileOutputStream(tmpFile);
+        try {
+            properties.store(out, null);
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String safe(String s) {
+        return (s == null) ? "none" : s.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+}
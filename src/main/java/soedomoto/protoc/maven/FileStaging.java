@@ -0,0 +1,66 @@
+package soedomoto.protoc.maven;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+/**
+ * Stages files without pushing their bytes through the heap: a hard link when source and target are on the same
+ * filesystem, a FileChannel transfer otherwise, nothing when the target already has the size and modification time of
+ * the source.
+ * <p>
+ * A hard link shares its content and permissions with the source, so it is only used for read-only trees like staged
+ * protos. Staged files must never be written in place, targets are always replaced and code writing into a staging
+ * tree deletes a previous file first. Executables are copied with {@link #transfer}, making a link executable would
+ * chmod the artifact in the local repository. The JDK has no reflink (copy on write) call, the transfer lets the
+ * kernel copy without a user space buffer instead.
+ */
+final class FileStaging {
+    private FileStaging() {
+    }
+
+    /**
+     * Makes target a copy of source, returns false if it was one already
+     */
+    static boolean stage(File source, File target) throws IOException {
+        long size = source.length();
+        long lastModified = source.lastModified();
+        if (target.isFile() && target.length() == size && target.lastModified() == lastModified) return false;
+
+        target.getParentFile().mkdirs();
+        Files.deleteIfExists(target.toPath());
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+            return true;
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            // another filesystem or no link support, copy instead
+        }
+        transfer(source, target);
+        target.setLastModified(lastModified);
+        return true;
+    }
+
+    /**
+     * Copies source to target in the kernel, target is a file of its own afterwards
+     */
+    static void transfer(File source, File target) throws IOException {
+        // replaced rather than truncated, target may be a link staged earlier
+        Files.deleteIfExists(target.toPath());
+        FileChannel in = new FileInputStream(source).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(target).getChannel();
+            try {
+                long position = 0;
+                long count = in.size();
+                while (position < count) position += in.transferTo(position, count - position, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
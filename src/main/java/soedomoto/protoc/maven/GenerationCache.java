@@ -0,0 +1,187 @@
+package soedomoto.protoc.maven;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Content-addressed cache of generated sources, shareable between checkouts and machines (e.g. on NFS).
+ * <p>
+ * An entry holds the outputs of one protoc invocation under {@code <dir>/<key prefix>/<key>/files/}, the key covers
+ * everything the outputs depend on. Entries are assembled in {@code <dir>/tmp} and published with an atomic rename,
+ * so readers never see a partial entry and concurrent writers of the same key don't conflict. The modification time
+ * of an entry directory is its last use, the least recently used entries are evicted above the size limit.
+ */
+class GenerationCache {
+    private static final String PROPERTIES = "entry.properties";
+    private final File dir;
+    private final File tmpDir;
+    private final long maxSize;
+    final AtomicInteger hits = new AtomicInteger();
+    final AtomicInteger misses = new AtomicInteger();
+    final AtomicInteger stores = new AtomicInteger();
+
+    GenerationCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.tmpDir = new File(dir, "tmp");
+        this.maxSize = maxSize;
+    }
+
+    boolean contains(String key) {
+        return new File(entryDir(key), PROPERTIES).isFile();
+    }
+
+    /**
+     * Copies the cached outputs into targetDir, returns false on a miss
+     */
+    boolean restore(String key, File targetDir) throws IOException {
+        File entryDir = entryDir(key);
+        Properties properties = readProperties(new File(entryDir, PROPERTIES));
+        if (properties == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        File filesDir = new File(entryDir, "files");
+        int count = 0;
+        try {
+            if (filesDir.isDirectory()) {
+                for (File cached : FileUtils.listFiles(filesDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE)) {
+                    File target = new File(targetDir, filesDir.toURI().relativize(cached.toURI()).getPath());
+                    target.getParentFile().mkdirs();
+                    Files.copy(cached.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    count++;
+                }
+            }
+        } catch (IOException e) {
+            // evicted while reading
+            count = -1;
+        }
+        if (!String.valueOf(count).equals(properties.getProperty("files"))) {
+            FileUtils.cleanDirectory(targetDir);
+            misses.incrementAndGet();
+            return false;
+        }
+        entryDir.setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stores outputs, given as files below outputDir
+     */
+    void store(String key, File outputDir, Collection<File> outputs) throws IOException {
+        File entryDir = entryDir(key);
+        if (new File(entryDir, PROPERTIES).isFile()) return;
+
+        tmpDir.mkdirs();
+        File workDir = Files.createTempDirectory(tmpDir.toPath(), "store").toFile();
+        try {
+            long size = 0;
+            for (File output : outputs) {
+                File cached = new File(workDir, "files" + File.separator + outputDir.toURI().relativize(output.toURI()).getPath());
+                cached.getParentFile().mkdirs();
+                Files.copy(output.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                size += cached.length();
+            }
+            Properties properties = new Properties();
+            properties.setProperty("files", String.valueOf(outputs.size()));
+            properties.setProperty("size", String.valueOf(size));
+            OutputStream out = new FileOutputStream(new File(workDir, PROPERTIES));
+            try {
+                properties.store(out, null);
+            } finally {
+                out.close();
+            }
+
+            entryDir.getParentFile().mkdirs();
+            try {
+                Files.move(workDir.toPath(), entryDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                stores.incrementAndGet();
+            } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+                // published by another build in the meantime
+            }
+        } finally {
+            FileUtils.deleteQuietly(workDir);
+        }
+    }
+
+    /**
+     * Evicts least recently used entries until the cache fits its size limit, returns the number of evicted entries
+     */
+    int evict() throws IOException {
+        List<File> entries = new ArrayList<File>();
+        Map<File, Long> sizes = new HashMap<File, Long>();
+        long total = 0;
+        File[] prefixes = dir.listFiles();
+        if (prefixes == null) return 0;
+        for (File prefix : prefixes) {
+            if (prefix.equals(tmpDir)) continue;
+            File[] entryDirs = prefix.listFiles();
+            if (entryDirs == null) continue;
+            for (File entryDir : entryDirs) {
+                Properties properties = readProperties(new File(entryDir, PROPERTIES));
+                long size = (properties != null) ? Long.parseLong(properties.getProperty("size", "0")) : 0;
+                entries.add(entryDir);
+                sizes.put(entryDir, size);
+                total += size;
+            }
+        }
+        cleanTmp();
+        if (total <= maxSize) return 0;
+
+        Map<File, Long> lastUsed = new HashMap<File, Long>();
+        for (File entryDir : entries) lastUsed.put(entryDir, entryDir.lastModified());
+        entries.sort(Comparator.comparing(lastUsed::get));
+        int evicted = 0;
+        tmpDir.mkdirs();
+        for (File entryDir : entries) {
+            if (total <= maxSize) break;
+            // moved out of sight first, readers either see the whole entry or none
+            File doomed = new File(tmpDir, "evict-" + UUID.randomUUID());
+            try {
+                Files.move(entryDir.toPath(), doomed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                continue;
+            }
+            FileUtils.deleteQuietly(doomed);
+            total -= sizes.get(entryDir);
+            evicted++;
+        }
+        return evicted;
+    }
+
+    private void cleanTmp() {
+        // leftovers of builds that were killed
+        File[] leftovers = tmpDir.listFiles();
+        if (leftovers == null) return;
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+        for (File leftover : leftovers) {
+            if (leftover.lastModified() < cutoff) FileUtils.deleteQuietly(leftover);
+        }
+    }
+
+    private File entryDir(String key) {
+        return new File(dir, key.substring(0, 2) + File.separator + key);
+    }
+
+    private static Properties readProperties(File file) {
+        if (!file.isFile()) return null;
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,84 @@
+package soedomoto.protoc.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Import dependencies between the compiled protos and everything they import through the include path.
+ * <p>
+ * Imports are resolved like protoc does for a single file invocation: include directories first, then the parent
+ * directory of the compiled file. The dependency hash of a file covers its own content and the content of all
+ * transitive imports, so a change to a shared import makes exactly its transitive importers stale.
+ */
+class ImportGraph {
+    private final BuildManifest manifest;
+    private final List<File> includeDirectories;
+    private final SourceSnapshot snapshot;
+    // "<compile root>|<path>" -> dependency hash, roots differ per parent directory of the compiled file
+    private final Map<String, String> dependencyHashes = new HashMap<String, String>();
+    private final Map<String, Set<String>> importers = new TreeMap<String, Set<String>>();
+
+    ImportGraph(BuildManifest manifest, File[] includeDirectories, SourceSnapshot snapshot) {
+        this.manifest = manifest;
+        this.includeDirectories = (includeDirectories != null) ? Arrays.asList(includeDirectories) : Collections.<File>emptyList();
+        this.snapshot = snapshot;
+    }
+
+    synchronized String dependencyHash(File file) throws IOException {
+        File root = file.getAbsoluteFile().getParentFile();
+        return dependencyHash(file.getAbsoluteFile(), root, new HashSet<String>());
+    }
+
+    /**
+     * Returns the reverse import graph seen so far, imported file -> files importing it
+     */
+    synchronized Map<String, Set<String>> getImporters() {
+        return importers;
+    }
+
+    private String dependencyHash(File file, File root, Set<String> visiting) throws IOException {
+        String path = file.getPath();
+        String key = root + "|" + path;
+        String cached = dependencyHashes.get(key);
+        if (cached != null) return cached;
+
+        // inputs come with their attributes from the snapshot, imported includes are looked at on demand
+        SourceSnapshot.Entry entry = snapshot.get(file);
+        String hash = (entry != null) ? manifest.hash(file, entry.size, entry.lastModified) : manifest.hash(file);
+        // protoc rejects import cycles, just don't recurse forever on broken input
+        if (!visiting.add(path)) return hash;
+
+        StringBuilder sb = new StringBuilder(hash);
+        for (String name : manifest.imports(file, hash)) {
+            File imported = resolve(name, root);
+            sb.append('\n').append(name).append('=');
+            if (imported == null) {
+                sb.append("missing");
+                continue;
+            }
+            addImporter(imported.getPath(), path);
+            sb.append(dependencyHash(imported, root, visiting));
+        }
+        visiting.remove(path);
+
+        String dependencyHash = BuildManifest.sha1(sb.toString());
+        dependencyHashes.put(key, dependencyHash);
+        return dependencyHash;
+    }
+
+    private File resolve(String name, File root) {
+        for (File include : includeDirectories) {
+            File file = new File(include, name);
+            if (file.isFile()) return file.getAbsoluteFile();
+        }
+        File file = new File(root, name);
+        return file.isFile() ? file.getAbsoluteFile() : null;
+    }
+
+    private void addImporter(String imported, String importer) {
+        Set<String> set = importers.get(imported);
+        if (set == null) importers.put(imported, set = new TreeSet<String>());
+        set.add(importer);
+    }
+}
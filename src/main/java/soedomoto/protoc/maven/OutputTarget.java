@@ -16,6 +16,8 @@ public class OutputTarget
 		pluginPath = null;
 		outputDirectory = null;
 		outputOptions = null;
+		aggregate = "none";
+		descriptorIndex = false;
 	}
 
 	@Parameter(property = "type", defaultValue = "java")
@@ -42,6 +44,14 @@ public class OutputTarget
 	@Parameter(property = "outputOptions")
 	String outputOptions;
 
+	// descriptor targets only: none (a set per file), all (one set) or directory (one set per input directory)
+	@Parameter(property = "aggregate", defaultValue = "none")
+	String aggregate;
+
+	// writes <set>.index next to aggregated sets, one "<type name> <file>" line per message and enum
+	@Parameter(property = "descriptorIndex", defaultValue = "false")
+	boolean descriptorIndex;
+
 	public String toString() {
 		return type + ": " + outputDirectory + " (add: " + addSources + ", clean: " + cleanOutputFolder + ", plugin: " + pluginPath + ", outputOptions: " + outputOptions + ")";
 	}
@@ -0,0 +1,35 @@
+package soedomoto.protoc.maven;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Lightweight scanner for the import statements of .proto files, a full parse is not needed to follow dependencies
+ */
+class ProtoImportScanner {
+    private static final String STRING = "\"(?:[^\"\\\\\\n]|\\\\.)*\"|'(?:[^'\\\\\\n]|\\\\.)*'";
+    // string literals are matched too, so comment markers and imports inside them are left alone
+    private static final Pattern COMMENT = Pattern.compile(STRING + "|(//[^\\n]*|/\\*.*?\\*/)", Pattern.DOTALL);
+    private static final Pattern IMPORT = Pattern.compile("\\bimport\\s+(?:public\\s+|weak\\s+)?[\"']([^\"']+)[\"']\\s*;|" + STRING);
+
+    static List<String> scanImports(File file) throws IOException {
+        return scanImports(new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+    }
+
+    static List<String> scanImports(String content) {
+        StringBuffer code = new StringBuffer();
+        Matcher comments = COMMENT.matcher(content);
+        while (comments.find()) comments.appendReplacement(code, (comments.group(1) != null) ? " " : "$0");
+        comments.appendTail(code);
+
+        List<String> imports = new ArrayList<String>();
+        Matcher matcher = IMPORT.matcher(code);
+        while (matcher.find()) {
+            if (matcher.group(1) != null) imports.add(matcher.group(1));
+        }
+        return imports;
+    }
+}
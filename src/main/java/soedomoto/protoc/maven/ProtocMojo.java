@@ -4,7 +4,6 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.filefilter.IOFileFilter;
 import org.apache.commons.io.filefilter.TrueFileFilter;
-import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.factory.ArtifactFactory;
 import org.apache.maven.artifact.repository.ArtifactRepository;
@@ -12,6 +11,7 @@ import org.apache.maven.artifact.resolver.ArtifactResolver;
 import org.apache.maven.artifact.versioning.VersionRange;
 import org.apache.maven.model.Dependency;
 import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecution;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Component;
@@ -21,19 +21,30 @@ import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
 import org.apache.maven.project.MavenProjectHelper;
 
-import com.github.os72.protocjar.PlatformDetector;
 import com.github.os72.protocjar.Protoc;
 import com.github.os72.protocjar.ProtocVersion;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.compiler.PluginProtos.CodeGeneratorRequest;
 import org.sonatype.plexus.build.incremental.BuildContext;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Mojo(name = "generate", defaultPhase = LifecyclePhase.COMPILE)
 public class ProtocMojo extends AbstractMojo {
+    // a file is listed as slow above this multiple of the median time of its target, and above OUTLIER_MIN_NANOS
+    private static final long OUTLIER_FACTOR = 5;
+    private static final long OUTLIER_MIN_NANOS = 200L * 1000000L;
     private static final String DEFAULT_INPUT_DIR = "/src/main/protobuf/".replace('/', File.separatorChar);
+    // stay well below the Windows CreateProcess limit (32767), longer file lists go through an @argfile
+    private static final int MAX_COMMAND_LENGTH = 8000;
+    private static final Set<String> AGGREGATE_MODES = new HashSet<String>(Arrays.asList("none", "all", "directory"));
+    // generators compiled into protoc, they can't be run as a protoc-gen-* plugin
+    private static final Set<String> BUILTIN_TYPES = new HashSet<String>(Arrays.asList("cpp", "csharp", "java", "java-shaded", "java_shaded", "js", "kotlin", "objc", "php", "pyi", "python", "ruby"));
     @Component
     protected MavenProjectHelper projectHelper;
     @Parameter(defaultValue = "${project}", required = true, readonly = true)
@@ -64,6 +75,36 @@ public class ProtocMojo extends AbstractMojo {
     File[] includeDirectories;
     @Parameter(property = "inputDirectories")
     File[] inputDirectories;
+    @Parameter(property = "batchCompile", defaultValue = "false")
+    boolean batchCompile;
+    @Parameter(property = "batchSize", defaultValue = "500")
+    int batchSize;
+    @Parameter(property = "parallel", defaultValue = "false")
+    boolean parallel;
+    @Parameter(property = "threads", defaultValue = "0")
+    int threads;
+    @Parameter(property = "writeIfChanged", defaultValue = "false")
+    boolean writeIfChanged;
+    @Parameter(property = "executableCacheDirectory", defaultValue = "${user.home}/.m2/protoc-maven-plugin/executables")
+    File executableCacheDirectory;
+    // warn or error, when dependencies contain the same proto path with different content
+    @Parameter(property = "dependencyConflicts", defaultValue = "warn")
+    String dependencyConflicts;
+    @Parameter(property = "descriptorFanOut", defaultValue = "false")
+    boolean descriptorFanOut;
+    @Parameter(property = "fuseTargets", defaultValue = "true")
+    boolean fuseTargets;
+    @Parameter(property = "generationCacheDirectory")
+    File generationCacheDirectory;
+    // megabytes
+    @Parameter(property = "generationCacheMaxSize", defaultValue = "1024")
+    long generationCacheMaxSize;
+    @Parameter(property = "timingReport", defaultValue = "false")
+    boolean timingReport;
+    @Parameter(property = "timingReportFile", defaultValue = "${project.build.directory}/pjmp-timing.json")
+    File timingReportFile;
+    @Parameter(defaultValue = "${mojoExecution}", readonly = true)
+    MojoExecution mojoExecution;
     @Parameter(defaultValue = "${localRepository}", required = true, readonly = true)
     private ArtifactRepository localRepository;
     @Parameter(defaultValue = "${project.remoteArtifactRepositories}", required = true, readonly = true)
@@ -75,12 +116,58 @@ public class ProtocMojo extends AbstractMojo {
     @Component
     private ArtifactResolver artifactResolver;
     private File tempRoot = null;
+    private File manifestFile = null;
+    // protocCommand as configured, before prepareProtoc replaces it with the resolved executable
+    private String configuredProtocCommand = null;
+    private boolean protocPrepared = false;
+    // null when optimizeCodegen is off, every input is compiled then
+    private BuildManifest manifest = null;
+    private ImportGraph importGraph = null;
+    private SourceSnapshot sourceSnapshot = null;
+    private DescriptorFanOut fanOut = null;
+    // null unless a generation cache directory is configured, its keys need the import graph of optimizeCodegen
+    private GenerationCache generationCache = null;
+    // per generation, the watch goal starts over for every regeneration
+    private BuildMetrics metrics = new BuildMetrics();
+    private final Map<OutputTarget, String> targetKeys = new HashMap<OutputTarget, String>();
+    private final Map<OutputTarget, Prune> prunes = new HashMap<OutputTarget, Prune>();
+    // target -> stale proto path -> why it has to be compiled
+    private final Map<OutputTarget, Map<String, String>> staleReasons = new HashMap<OutputTarget, Map<String, String>>();
+    // outputs created, changed or deleted by this generation, only these are refreshed in the IDE
+    private final Set<File> touchedOutputs = new HashSet<File>();
+    // cleaned output folders, everything in them changed
+    private final Set<OutputTarget> cleanedTargets = new HashSet<OutputTarget>();
+    // -I arguments of the include directories, checked once per generation
+    private List<String> includeArgs = null;
+    // set by the plan goal, stops after the up-to-date check and leaves the manifest untouched
+    boolean dryRun = false;
+
+    /**
+     * A protoc job with its expected duration, jobs are started longest first so slow protos don't end up last
+     */
+    private static class Job implements Callable<Void> {
+        final Callable<Void> body;
+        final long cost;
+
+        Job(Callable<Void> body, long cost) {
+            this.body = body;
+            this.cost = cost;
+        }
 
-    static void deleteOnExitRecursive(File dir) {
-        dir.deleteOnExit();
-        for (File f : dir.listFiles()) {
-            f.deleteOnExit();
-            if (f.isDirectory()) deleteOnExitRecursive(f);
+        @Override
+        public Void call() throws Exception {
+            return body.call();
+        }
+    }
+
+    private static class Prune {
+        final Set<String> removedSources;
+        // outputs recorded for removed and recompiled protos, deleted unless generated again
+        final Set<String> outputs;
+
+        Prune(Set<String> removedSources, Set<String> outputs) {
+            this.removedSources = removedSources;
+            this.outputs = outputs;
         }
     }
 
@@ -93,37 +180,11 @@ public class ProtocMojo extends AbstractMojo {
     }
 
     static File copyFile(File srcFile, File destFile) throws IOException {
-        FileInputStream is = null;
-        FileOutputStream os = null;
-        try {
-            is = new FileInputStream(srcFile);
-            os = new FileOutputStream(destFile);
-            streamCopy(is, os);
-        } finally {
-            if (is != null) is.close();
-            if (os != null) os.close();
-        }
+        // a copy of its own, the file is made executable afterwards
+        FileStaging.transfer(srcFile, destFile);
         return destFile;
     }
 
-    static void streamCopy(InputStream in, OutputStream out) throws IOException {
-        int read = 0;
-        byte[] buf = new byte[4096];
-        while ((read = in.read(buf)) > 0) out.write(buf, 0, read);
-    }
-
-    static File createTempDir(String name) throws MojoExecutionException {
-        try {
-            File tmpDir = File.createTempFile(name, "");
-            tmpDir.delete();
-            tmpDir.mkdirs();
-            tmpDir.deleteOnExit();
-            return tmpDir;
-        } catch (IOException e) {
-            throw new MojoExecutionException("Error creating temporary directory: " + name, e);
-        }
-    }
-
     static File[] addDir(File[] dirs, File dir) {
         if (dirs == null) {
             dirs = new File[]{dir};
@@ -139,30 +200,66 @@ public class ProtocMojo extends AbstractMojo {
         return true;
     }
 
-    static long minFileTime(OutputTarget[] outputTargets) {
-        long minTime = Long.MAX_VALUE;
-        for (OutputTarget target : outputTargets) minTime = Math.min(minTime, minFileTime(target.outputDirectory));
-        return minTime;
+    static int commandLength(Collection<String> args) {
+        int length = 0;
+        for (String arg : args) length += arg.length() + 3; // separator and quotes
+        return length;
     }
 
-    static long maxFileTime(File[] dirs) {
-        long maxTime = Long.MIN_VALUE;
-        for (File dir : dirs) maxTime = Math.max(maxTime, maxFileTime(dir));
-        return maxTime;
+    static List<List<File>> partitionBatches(List<File> files, int batchSize) {
+        return partitionBatches(files, batchSize, null);
     }
 
-    static long minFileTime(File current) {
-        if (!current.isDirectory()) return current.lastModified();
-        long minTime = Long.MAX_VALUE;
-        for (File entry : current.listFiles()) minTime = Math.min(minTime, minFileTime(entry));
-        return minTime;
+    /**
+     * Splits files into batches of at most batchSize files, with the expected cost of each file the batches of a
+     * directory get about the same total cost
+     */
+    static List<List<File>> partitionBatches(List<File> files, int batchSize, Map<File, Long> costs) {
+        // files of one batch share their parent directory, so each keeps the same -I root as in single file mode
+        Map<File, List<File>> byParent = new LinkedHashMap<File, List<File>>();
+        for (File file : files) {
+            File parent = file.getAbsoluteFile().getParentFile();
+            List<File> group = byParent.get(parent);
+            if (group == null) byParent.put(parent, group = new ArrayList<File>());
+            group.add(file);
+        }
+        int size = Math.max(1, batchSize);
+        List<List<File>> batches = new ArrayList<List<File>>();
+        for (List<File> group : byParent.values()) {
+            if (costs == null || group.size() <= size) {
+                for (int i = 0; i < group.size(); i += size) batches.add(group.subList(i, Math.min(group.size(), i + size)));
+                continue;
+            }
+            // most expensive first, each into the cheapest batch that has room
+            int count = (group.size() + size - 1) / size;
+            List<File> byCost = new ArrayList<File>(group);
+            byCost.sort((a, b) -> Long.compare(costs.get(b), costs.get(a)));
+            List<Set<File>> bins = new ArrayList<Set<File>>();
+            long[] totals = new long[count];
+            for (int i = 0; i < count; i++) bins.add(new HashSet<File>());
+            for (File file : byCost) {
+                int cheapest = -1;
+                for (int i = 0; i < count; i++) {
+                    if (bins.get(i).size() < size && (cheapest < 0 || totals[i] < totals[cheapest])) cheapest = i;
+                }
+                bins.get(cheapest).add(file);
+                totals[cheapest] += costs.get(file);
+            }
+            // files keep their order within a batch
+            for (Set<File> bin : bins) {
+                List<File> batch = new ArrayList<File>();
+                for (File file : group) {
+                    if (bin.contains(file)) batch.add(file);
+                }
+                batches.add(batch);
+            }
+        }
+        return batches;
     }
 
-    static long maxFileTime(File current) {
-        if (!current.isDirectory()) return current.lastModified();
-        long maxTime = Long.MIN_VALUE;
-        for (File entry : current.listFiles()) maxTime = Math.max(maxTime, maxFileTime(entry));
-        return maxTime;
+    static boolean isArchive(File outputDir) {
+        String name = outputDir.getName().toLowerCase();
+        return name.endsWith(".jar") || name.endsWith(".zip") || name.endsWith(".srcjar");
     }
 
     @Override
@@ -176,8 +273,6 @@ public class ProtocMojo extends AbstractMojo {
             outputTargets = new OutputTarget[]{};
         }
 
-        boolean missingOutputDirectory = false;
-
         for (OutputTarget target : outputTargets) {
             target.addSources = target.addSources.toLowerCase().trim();
             if ("true".equals(target.addSources)) target.addSources = "main";
@@ -191,60 +286,114 @@ public class ProtocMojo extends AbstractMojo {
                 target.outputDirectory = new File(target.outputDirectory, target.outputDirectorySuffix);
             }
 
-            String[] outputFiles = target.outputDirectory.list();
-            if (outputFiles == null || outputFiles.length == 0) {
-                missingOutputDirectory = true;
-            }
+            validateTarget(target);
         }
 
-        if (!optimizeCodegen) {
-            performProtoCompilation(true);
-            return;
+        configuredProtocCommand = protocCommand;
+        manifestFile = new File(project.getBuild().getDirectory(), "pjmp-manifest-" + executionId() + ".ser");
+        if (optimizeCodegen) manifest = BuildManifest.load(manifestFile);
+        if (generationCacheDirectory != null && !optimizeCodegen) {
+            getLog().warn("Generation cache " + generationCacheDirectory + " is not used, its keys need optimizeCodegen");
+        }
+        try {
+            performProtoCompilation();
+        } finally {
+            saveManifest();
+            if (timingReport) writeTimingReport();
         }
+    }
+
+    /**
+     * Runs the up-to-date check and code generation again, with protoc and the include trees of the last execution.
+     * Metrics and the timing report cover this generation only.
+     */
+    void regenerate() throws MojoExecutionException {
+        metrics = new BuildMetrics();
+        prunes.clear();
+        if (manifest != null) manifest.startBuild();
+        try {
+            generateSources();
+        } finally {
+            saveManifest();
+            if (timingReport) writeTimingReport();
+        }
+    }
+
+    /**
+     * Id of this execution, each execution keeps its own manifest as it has its own inputs and targets. Goals run from
+     * the command line share the state of the default execution, they are usually configured the same way.
+     */
+    String executionId() {
+        String id = (mojoExecution != null) ? mojoExecution.getExecutionId() : null;
+        if (id == null || id.isEmpty() || "default-cli".equals(id)) return "default";
+        return id.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    boolean isPrepared() {
+        return sourceSnapshot != null;
+    }
 
-        File successFile = new File(project.getBuild().getDirectory(), "pjmp-success.txt");
+    private void saveManifest() {
+        // also keeps the progress of a failed build, only files that compiled successfully are recorded
+        if (manifest == null || dryRun) return;
+        long start = System.nanoTime();
         try {
-            long oldestOutputFileTime = minFileTime(outputTargets);
-            long newestInputFileTime = maxFileTime(inputDirectories);
-            if (successFile.exists() && newestInputFileTime < oldestOutputFileTime && !missingOutputDirectory) {
-                getLog().info("Skipping code generation, proto files appear unchanged since last compilation");
-                performProtoCompilation(false);
-                return;
-            }
-            successFile.delete();
-            performProtoCompilation(true);
-            successFile.getParentFile().mkdirs();
-            successFile.createNewFile();
+            manifest.save(manifestFile);
         } catch (IOException e) {
-            throw new MojoExecutionException("File operation failed: " + successFile, e);
+            getLog().warn("Unable to write build manifest " + manifestFile + ": " + e);
         }
+        metrics.phase("manifest", start, 1, manifestFile.length());
     }
 
-    private void performProtoCompilation(boolean doCodegen) throws MojoExecutionException {
-        if (isEmpty(protocVersion)) protocVersion = ProtocVersion.PROTOC_VERSION.mVersion;
-        getLog().info("Protoc version: " + protocVersion);
+    private void writeTimingReport() {
+        metrics.log(getLog(), 10);
+        try {
+            metrics.write(timingReportFile);
+            getLog().info("Timing report: " + timingReportFile);
+        } catch (IOException e) {
+            getLog().warn("Unable to write timing report " + timingReportFile + ": " + e);
+        }
+    }
 
-        if (doCodegen) prepareProtoc();
+    BuildMetrics getMetrics() {
+        return metrics;
+    }
 
-        // even if doCodegen == false, we still extract extra includes/inputs because addProtoSources might be requested
-        // this could be optimized further
-        File tmpDir = createTempDir("protocjar");
+    private void performProtoCompilation() throws MojoExecutionException {
+        // before std types and fingerprints, protoc itself is only prepared once something is stale
+        if (protocArtifact != null) protocVersion = ProtocVersion.getVersion("-v:" + protocArtifact).mVersion;
+        if (isEmpty(protocVersion)) protocVersion = ProtocVersion.PROTOC_VERSION.mVersion;
+        getLog().info("Protoc version: " + protocVersion);
 
-        // extract additional include types
-        if (includeStdTypes || hasIncludeMavenTypes()) {
+        // extra includes/inputs are staged under target/ and kept between builds, an up-to-date build only validates them
+        if (includeStdTypes) {
+            long start = System.nanoTime();
+            long extracted = metrics.get(BuildMetrics.PROTOS_EXTRACTED);
+            long extractedBytes = metrics.get(BuildMetrics.PROTO_BYTES_EXTRACTED);
             try {
-                File extraTypeDir = new File(tmpDir, "include");
-                extraTypeDir.mkdir();
+                File extraTypeDir = stageStdTypes();
                 getLog().info("Additional include types: " + extraTypeDir);
                 addIncludeDir(extraTypeDir);
-                if (includeStdTypes)
-                    Protoc.extractStdTypes(ProtocVersion.getVersion("-v" + protocVersion), tmpDir); // yes, tmpDir
-                if (hasIncludeMavenTypes())
-                    extractProtosFromDependencies(extraTypeDir, includeMavenTypes.equalsIgnoreCase("transitive"));
-                deleteOnExitRecursive(extraTypeDir);
             } catch (Exception e) {
                 throw new MojoExecutionException("Error extracting additional include types", e);
             }
+            metrics.phase("std-types", start, metrics.get(BuildMetrics.PROTOS_EXTRACTED) - extracted, metrics.get(BuildMetrics.PROTO_BYTES_EXTRACTED) - extractedBytes);
+        }
+
+        // dependency protos are kept under target/ and only updated when a dependency changes
+        if (hasIncludeMavenTypes()) {
+            long start = System.nanoTime();
+            long extracted = metrics.get(BuildMetrics.PROTOS_EXTRACTED);
+            long extractedBytes = metrics.get(BuildMetrics.PROTO_BYTES_EXTRACTED);
+            try {
+                File mavenTypesIncludeDir = dependencyDir("include");
+                getLog().info("Additional include types from Maven dependencies (" + includeMavenTypes + "): " + mavenTypesIncludeDir);
+                addIncludeDir(mavenTypesIncludeDir);
+                extractProtosFromDependencies(mavenTypesIncludeDir, includeMavenTypes.equalsIgnoreCase("transitive"));
+            } catch (Exception e) {
+                throw new MojoExecutionException("Error extracting additional include types", e);
+            }
+            metrics.phase("dependencies", start, metrics.get(BuildMetrics.PROTOS_EXTRACTED) - extracted, metrics.get(BuildMetrics.PROTO_BYTES_EXTRACTED) - extractedBytes);
         }
 
         if (inputDirectories == null || inputDirectories.length == 0) {
@@ -253,16 +402,18 @@ public class ProtocMojo extends AbstractMojo {
         }
 
         if (hasCompileMavenTypes()) {
+            long start = System.nanoTime();
+            long extracted = metrics.get(BuildMetrics.PROTOS_EXTRACTED);
+            long extractedBytes = metrics.get(BuildMetrics.PROTO_BYTES_EXTRACTED);
             try {
-                File mavenTypesCompileDir = new File(tmpDir, "mvncompile");
-                mavenTypesCompileDir.mkdir();
+                File mavenTypesCompileDir = dependencyDir("compile");
                 getLog().info("Files to compile from Maven dependencies (" + compileMavenTypes + "): " + mavenTypesCompileDir);
                 addInputDir(mavenTypesCompileDir);
                 extractProtosFromDependencies(mavenTypesCompileDir, compileMavenTypes.equalsIgnoreCase("transitive"));
-                deleteOnExitRecursive(mavenTypesCompileDir);
             } catch (IOException e) {
                 throw new MojoExecutionException("Error extracting files from Maven dependencies", e);
             }
+            metrics.phase("dependencies", start, metrics.get(BuildMetrics.PROTOS_EXTRACTED) - extracted, metrics.get(BuildMetrics.PROTO_BYTES_EXTRACTED) - extractedBytes);
         }
 
         getLog().info("Input directories:");
@@ -287,22 +438,144 @@ public class ProtocMojo extends AbstractMojo {
             }
         }
 
-        if (doCodegen) {
+        generateSources();
+    }
+
+    private void generateSources() throws MojoExecutionException {
+        // one walk over the inputs, shared by the up-to-date check and all targets
+        long start = System.nanoTime();
+        includeArgs = null;
+        touchedOutputs.clear();
+        cleanedTargets.clear();
+        try {
+            sourceSnapshot = SourceSnapshot.scan(inputDirectories, extension);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error scanning input directories", e);
+        }
+        long inputBytes = 0;
+        for (SourceSnapshot.Entry entry : sourceSnapshot.entries()) inputBytes += entry.size;
+        metrics.phase("scan", start, sourceSnapshot.size(), inputBytes);
+        List<File> protoFiles = sourceSnapshot.files();
+
+        start = System.nanoTime();
+        if (manifest != null) importGraph = new ImportGraph(manifest, includeDirectories, sourceSnapshot);
+        Map<OutputTarget, List<File>> staleFiles = new LinkedHashMap<OutputTarget, List<File>>();
+        for (int i = 0; i < outputTargets.length; i++) {
+            OutputTarget target = outputTargets[i];
+            targetKeys.put(target, i + ":" + target.type + ":" + target.outputDirectory.getAbsolutePath());
+            List<File> stale = findStaleFiles(target, protoFiles);
+            if (!stale.isEmpty()) staleFiles.put(target, stale);
+        }
+        if (importGraph != null) {
+            Map<String, Set<String>> importers = importGraph.getImporters();
+            synchronized (manifest) {
+                manifest.importers.clear();
+                manifest.importers.putAll(importers);
+            }
+        }
+        addCleanedTargets(staleFiles, protoFiles);
+        metrics.phase("up-to-date-check", start, (long) protoFiles.size() * outputTargets.length, 0);
+
+        if (dryRun) {
+            printPlan(staleFiles);
+            return;
+        }
+        if (staleFiles.isEmpty()) {
+            getLog().info("Skipping code generation, proto files appear unchanged since last compilation");
+        } else {
+            if (!protocPrepared) {
+                start = System.nanoTime();
+                prepareProtoc();
+                protocPrepared = true;
+                File protocFile = (protocCommand != null) ? new File(protocCommand) : null;
+                boolean isFile = protocFile != null && protocFile.isFile();
+                metrics.phase("prepare-protoc", start, isFile ? 1 : 0, isFile ? protocFile.length() : 0);
+            }
             getLog().info("Output targets:");
-            for (OutputTarget target : outputTargets) getLog().info("    " + target);
-            for (OutputTarget target : outputTargets) preprocessTarget(target);
-            for (OutputTarget target : outputTargets) processTarget(target);
+            for (OutputTarget target : staleFiles.keySet()) getLog().info("    " + target);
+            start = System.nanoTime();
+            for (OutputTarget target : staleFiles.keySet()) preprocessTarget(target);
+            metrics.phase("prepare-targets", start, staleFiles.size(), 0);
+            if (generationCacheDirectory != null && manifest != null) {
+                generationCache = new GenerationCache(generationCacheDirectory, generationCacheMaxSize * 1024 * 1024);
+            }
+            compileDescriptors(staleFiles);
+            List<List<OutputTarget>> groups = groupTargets(staleFiles);
+            int staleCount = 0;
+            for (List<File> files : staleFiles.values()) staleCount += files.size();
+            start = System.nanoTime();
+            long bytesWritten = metrics.get(BuildMetrics.OUTPUT_BYTES_WRITTEN);
+            if (parallel && threadCount() > 1) {
+                // compile every target at once
+                List<Job> jobs = new ArrayList<Job>();
+                for (List<OutputTarget> group : groups) jobs.addAll(createJobs(group, staleFiles.get(group.get(0))));
+                jobs.sort((a, b) -> Long.compare(b.cost, a.cost));
+                runJobs(jobs, threadCount());
+            } else {
+                for (List<OutputTarget> group : groups) processTargets(group, staleFiles.get(group.get(0)));
+            }
+            metrics.phase("compile", start, staleCount, metrics.get(BuildMetrics.OUTPUT_BYTES_WRITTEN) - bytesWritten);
+            if (generationCache != null) closeGenerationCache();
+            logOutliers(staleFiles);
         }
+        start = System.nanoTime();
+        long removed = metrics.get(BuildMetrics.OUTPUTS_REMOVED);
+        long removedBytes = metrics.get(BuildMetrics.OUTPUT_BYTES_REMOVED);
+        pruneOutputs();
+        metrics.phase("prune", start, metrics.get(BuildMetrics.OUTPUTS_REMOVED) - removed, metrics.get(BuildMetrics.OUTPUT_BYTES_REMOVED) - removedBytes);
+
+        start = System.nanoTime();
+        int refreshed = 0;
+        for (OutputTarget target : outputTargets) refreshed += addGeneratedSources(target);
+        metrics.phase("refresh", start, refreshed, 0);
+    }
+
+    private File stageStdTypes() throws IOException {
+        File stdTypesDir = new File(project.getBuild().getDirectory(), "protoc-dependencies" + File.separator + "std-" + protocVersion);
+        File extraTypeDir = new File(stdTypesDir, "include");
+        File completeFile = new File(stdTypesDir, ".complete");
+        if (completeFile.isFile() && extraTypeDir.isDirectory()) return extraTypeDir;
+
+        FileUtils.deleteQuietly(stdTypesDir);
+        stdTypesDir.mkdirs();
+        // extracted once per JVM, further modules of the reactor only write the files
+        Map<String, byte[]> stdTypes = ReactorCache.get("std-types|" + protocVersion, () -> readStdTypes(protocVersion));
+        for (Map.Entry<String, byte[]> entry : stdTypes.entrySet()) {
+            FileUtils.writeByteArrayToFile(new File(extraTypeDir, entry.getKey()), entry.getValue());
+            metrics.count(BuildMetrics.PROTOS_EXTRACTED, 1);
+            metrics.count(BuildMetrics.PROTO_BYTES_EXTRACTED, entry.getValue().length);
+        }
+        completeFile.createNewFile();
+        return extraTypeDir;
+    }
 
-        for (OutputTarget target : outputTargets) addGeneratedSources(target);
+    private static Map<String, byte[]> readStdTypes(String protocVersion) throws IOException {
+        // protoc-jar registers its extracted files for deletion on exit, so extract to scratch and keep the content
+        File scratchDir = Files.createTempDirectory("protoc-std-types").toFile();
+        try {
+            Protoc.extractStdTypes(ProtocVersion.getVersion("-v" + protocVersion), scratchDir); // extracts to <dir>/include
+            File includeDir = new File(scratchDir, "include");
+            Map<String, byte[]> stdTypes = new LinkedHashMap<String, byte[]>();
+            for (File file : FileUtils.listFiles(includeDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE)) {
+                stdTypes.put(includeDir.toURI().relativize(file.toURI()).getPath(), Files.readAllBytes(file.toPath()));
+            }
+            return Collections.unmodifiableMap(stdTypes);
+        } finally {
+            FileUtils.deleteQuietly(scratchDir);
+        }
     }
 
     private void prepareProtoc() throws MojoExecutionException {
-        if (protocCommand != null) {
+        if (protocCommand != null && !isRunnable(protocCommand)) protocCommand = null;
+
+        if (protocCommand == null && protocArtifact == null && executableCacheDirectory != null) {
+            // option (1) - embedded protoc from the shared executable cache, extracted and probed once
             try {
-                Protoc.runProtoc(protocCommand, new String[]{"--version"});
-            } catch (Exception e) {
-                protocCommand = null;
+                ExecutableCache.Entry entry = new ExecutableCache(executableCacheDirectory).get("protoc", protocVersion, detectPlatform(), null,
+                        workDir -> Protoc.extractProtoc(ProtocVersion.getVersion("-v" + protocVersion), false, workDir));
+                protocCommand = probeCachedProtoc(entry);
+            } catch (IOException e) {
+                getLog().warn("Unable to use executable cache " + executableCacheDirectory + ": " + e);
             }
         }
 
@@ -327,6 +600,15 @@ public class ProtocMojo extends AbstractMojo {
         }
 
         // option (2) - resolve protoc maven artifact (download)
+        if (protocCommand == null && protocArtifact != null && executableCacheDirectory != null) {
+            protocVersion = ProtocVersion.getVersion("-v:" + protocArtifact).mVersion;
+            try {
+                protocCommand = probeCachedProtoc(cacheArtifact(protocArtifact));
+            } catch (IOException e) {
+                getLog().warn("Unable to use executable cache " + executableCacheDirectory + ": " + e);
+            }
+        }
+
         if (protocCommand == null && protocArtifact != null) {
             protocVersion = ProtocVersion.getVersion("-v:" + protocArtifact).mVersion;
             protocCommand = resolveArtifact(protocArtifact, null).getAbsolutePath();
@@ -342,8 +624,77 @@ public class ProtocMojo extends AbstractMojo {
         getLog().info("Protoc command: " + protocCommand);
     }
 
+    private static boolean isRunnable(String command) {
+        File file = new File(command);
+        // a command looked up on the PATH may change between builds, only executables given by path are remembered
+        if (!file.isFile()) return probe(command);
+        try {
+            String slot = "probe|" + file.getAbsolutePath();
+            return ReactorCache.get(slot, slot + "|" + file.length() + "|" + file.lastModified(), () -> probe(command), null);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean probe(String command) {
+        try {
+            Protoc.runProtoc(command, new String[]{"--version"});
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private String probeCachedProtoc(ExecutableCache.Entry entry) throws IOException {
+        if (!entry.isProbed()) {
+            boolean runnable = true;
+            try {
+                // some filesystems don't allow exec, the result is kept with the cache entry
+                Protoc.runProtoc(entry.file.getAbsolutePath(), new String[]{"--version"});
+            } catch (Exception e) {
+                runnable = false;
+            }
+            entry.recordProbe(runnable);
+        }
+        if (!entry.isRunnable()) {
+            getLog().info("Cached protoc is not executable, falling back to extraction: " + entry.file);
+            return null;
+        }
+        return entry.file.getAbsolutePath();
+    }
+
+    private ExecutableCache.Entry cacheArtifact(String artifactSpec) throws MojoExecutionException, IOException {
+        String[] as = parseArtifactSpec(artifactSpec, detectPlatform());
+        File artifactFile = resolveArtifactFile(artifactSpec);
+        String sourceStamp = artifactFile.getAbsolutePath() + "|" + artifactFile.length() + "|" + artifactFile.lastModified();
+        return new ExecutableCache(executableCacheDirectory).get(as[1], as[2], as[4], sourceStamp, workDir -> artifactFile);
+    }
+
+    /**
+     * Checks options that would otherwise be ignored silently, for every target as only stale ones are preprocessed
+     */
+    private void validateTarget(OutputTarget target) throws MojoExecutionException {
+        target.aggregate = (target.aggregate != null) ? target.aggregate.toLowerCase().trim() : "none";
+        if (!AGGREGATE_MODES.contains(target.aggregate)) {
+            throw new MojoExecutionException("Invalid aggregate '" + target.aggregate + "' of " + target.type + " target " + target.outputDirectory + ", expected none, all or directory");
+        }
+        if (!"none".equals(target.aggregate) && !"descriptor".equals(target.type)) {
+            getLog().warn("aggregate of " + target.type + " target " + target.outputDirectory + " is ignored, only descriptor sets are aggregated");
+        }
+        if (target.descriptorIndex && !isAggregated(target)) {
+            getLog().warn("descriptorIndex of " + target.type + " target " + target.outputDirectory + " is ignored, indexes are only written for aggregated descriptor sets in a folder");
+        }
+    }
+
     private void preprocessTarget(OutputTarget target) throws MojoExecutionException {
-        if (!isEmpty(target.pluginArtifact)) {
+        if (!isEmpty(target.pluginArtifact) && executableCacheDirectory != null) {
+            try {
+                target.pluginPath = cacheArtifact(target.pluginArtifact).file.getAbsolutePath();
+            } catch (IOException e) {
+                getLog().warn("Unable to use executable cache " + executableCacheDirectory + ": " + e);
+                target.pluginPath = resolveArtifact(target.pluginArtifact, tempRoot).getAbsolutePath();
+            }
+        } else if (!isEmpty(target.pluginArtifact)) {
             target.pluginPath = resolveArtifact(target.pluginArtifact, tempRoot).getAbsolutePath();
         }
 
@@ -357,134 +708,1148 @@ public class ProtocMojo extends AbstractMojo {
             try {
                 getLog().info("Cleaning " + f);
                 FileUtils.cleanDirectory(f);
+                cleanedTargets.add(target);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
-    private void processTarget(OutputTarget target) throws MojoExecutionException {
-        boolean shaded = false;
-        String targetType = target.type;
-        if (targetType.equals("java-shaded") || targetType.equals("java_shaded")) {
-            targetType = "java";
-            shaded = true;
+    private List<File> findStaleFiles(OutputTarget target, List<File> protoFiles) throws MojoExecutionException {
+        List<File> staleFiles = new ArrayList<File>();
+        Map<String, String> reasons = new LinkedHashMap<String, String>();
+        staleReasons.put(target, reasons);
+        if (manifest == null) {
+            for (File file : protoFiles) {
+                if (target.cleanOutputFolder) reasons.put(file.getAbsolutePath(), "output folder cleaned");
+                else if (buildContext.hasDelta(file.getAbsolutePath())) reasons.put(file.getAbsolutePath(), "delta");
+                else {
+                    getLog().info("Not changed " + file);
+                    continue;
+                }
+                staleFiles.add(file);
+            }
+            return staleFiles;
         }
 
-        List<String> protoFilesPath = new ArrayList<>();
+        try {
+            String key = targetKeys.get(target);
+            String fingerprint = fingerprint(target);
+            BuildManifest.TargetState state = manifest.targets.get(key);
+            // applies to every file when the whole target is compiled again
+            String targetReason = null;
+            if (state == null) {
+                getLog().info("No previous compilation recorded for " + target.type + " target, compiling all files");
+                state = new BuildManifest.TargetState(fingerprint);
+                targetReason = "no previous compilation";
+            } else if (!state.fingerprint.equals(fingerprint) || target.cleanOutputFolder && hasChanges(state, protoFiles)) {
+                if (!state.fingerprint.equals(fingerprint)) getLog().info("Configuration of " + target.type + " target changed, compiling all files");
+                else getLog().info("Output folder of " + target.type + " target is cleaned, compiling all files");
+                targetReason = !state.fingerprint.equals(fingerprint) ? "option change" : "output folder cleaned";
+                BuildManifest.TargetState previous = state;
+                state = new BuildManifest.TargetState(fingerprint);
+                // outputs of the previous configuration are pruned once they are not generated any more
+                state.outputs.putAll(previous.outputs);
+                // durations still hold for scheduling
+                state.costs.putAll(previous.costs);
+            }
+            synchronized (manifest) {
+                manifest.targets.put(key, state);
+            }
+
+            Set<String> stalePaths = new LinkedHashSet<String>();
+            Set<String> currentPaths = new HashSet<String>();
+            for (File file : protoFiles) {
+                String path = file.getAbsolutePath();
+                currentPaths.add(path);
+                // the dependency hash also changes when anything imported directly or transitively changed
+                String previousHash = state.sources.get(path);
+                String reason;
+                if (!importGraph.dependencyHash(file).equals(previousHash)) {
+                    if (targetReason != null) reason = targetReason;
+                    else if (previousHash == null) reason = "new file";
+                    else reason = manifest.isChanged(file) ? "delta" : "import change";
+                } else if (hasMissingOutputs(state.outputs.get(path))) {
+                    reason = "missing output";
+                } else {
+                    getLog().debug("Not changed " + file);
+                    continue;
+                }
+                stalePaths.add(path);
+                reasons.put(path, reason);
+            }
 
-        for (File input : inputDirectories) {
-            if (input == null) continue;
-            if (input.exists() && input.isDirectory()) {
-                FileUtils.listFiles(input, new String[]{extension}, true).forEach(file -> {
-                    if (!protoFilesPath.contains(file.getAbsolutePath())) {
-                        protoFilesPath.add(file.getAbsolutePath());
+            // outputs shared with a removed proto (e.g. from one batch) are only known correctly after recompiling
+            Set<String> removed = new HashSet<String>(state.outputs.keySet());
+            removed.removeAll(currentPaths);
+            Set<String> candidates = new HashSet<String>();
+            for (String source : removed) candidates.addAll(state.outputs.get(source));
+            if (!removed.isEmpty()) {
+                getLog().info("Removed files (" + target.type + "): " + removed.size());
+                for (Map.Entry<String, Set<String>> entry : state.outputs.entrySet()) {
+                    if (currentPaths.contains(entry.getKey()) && !Collections.disjoint(entry.getValue(), candidates) && stalePaths.add(entry.getKey())) {
+                        reasons.put(entry.getKey(), "outputs shared with a removed file");
+                    }
+                }
+            }
+            for (String path : stalePaths) {
+                Set<String> outputs = state.outputs.get(path);
+                if (outputs != null) candidates.addAll(outputs);
+            }
+            if (!candidates.isEmpty() || !removed.isEmpty()) prunes.put(target, new Prune(removed, candidates));
+
+            for (File file : protoFiles) {
+                if (stalePaths.contains(file.getAbsolutePath())) staleFiles.add(file);
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to check proto files for changes", e);
+        }
+
+        if (!staleFiles.isEmpty()) getLog().info("Changed files (" + target.type + "): " + staleFiles.size() + " of " + protoFiles.size());
+        return staleFiles;
+    }
+
+    /**
+     * Stale targets with cleanOutputFolder wipe their folder, every target writing into it has to compile all files
+     */
+    private void addCleanedTargets(Map<OutputTarget, List<File>> staleFiles, List<File> protoFiles) {
+        boolean added = true;
+        while (added) {
+            added = false;
+            for (OutputTarget cleaned : new ArrayList<OutputTarget>(staleFiles.keySet())) {
+                if (!cleaned.cleanOutputFolder) continue;
+                Set<File> roots = Collections.singleton(cleaned.outputDirectory.getAbsoluteFile());
+                for (OutputTarget target : outputTargets) {
+                    File dir = target.outputDirectory.getAbsoluteFile();
+                    if (!roots.contains(dir) && !isInside(dir, roots)) continue;
+                    List<File> stale = staleFiles.get(target);
+                    if (stale != null && stale.size() == protoFiles.size()) continue;
+                    getLog().info("Output folder of " + target.type + " target is cleaned by the " + cleaned.type + " target, compiling all files");
+                    staleFiles.put(target, new ArrayList<File>(protoFiles));
+                    Map<String, String> reasons = staleReasons.get(target);
+                    for (File file : protoFiles) reasons.putIfAbsent(file.getAbsolutePath(), "output folder cleaned");
+                    added = true;
+                }
+            }
+        }
+    }
+
+    private boolean hasChanges(BuildManifest.TargetState state, List<File> protoFiles) throws IOException {
+        if (state.sources.size() != protoFiles.size()) return true;
+        for (File file : protoFiles) {
+            String path = file.getAbsolutePath();
+            if (!importGraph.dependencyHash(file).equals(state.sources.get(path)) || hasMissingOutputs(state.outputs.get(path))) return true;
+        }
+        return false;
+    }
+
+    private static boolean hasMissingOutputs(Set<String> outputs) {
+        if (outputs == null) return true;
+        for (String output : outputs) {
+            if (!new File(output).exists()) return true;
+        }
+        return false;
+    }
+
+    private void pruneOutputs() {
+        if (manifest == null) return;
+        synchronized (manifest) {
+            // states of targets that are no longer configured give up their outputs as well
+            Set<String> orphanedKeys = new HashSet<String>(manifest.targets.keySet());
+            orphanedKeys.removeAll(targetKeys.values());
+            Set<String> candidates = new HashSet<String>();
+            for (String key : orphanedKeys) {
+                for (Set<String> outputs : manifest.targets.remove(key).outputs.values()) candidates.addAll(outputs);
+            }
+            for (Map.Entry<OutputTarget, Prune> entry : prunes.entrySet()) {
+                BuildManifest.TargetState state = manifest.targets.get(targetKeys.get(entry.getKey()));
+                for (String source : entry.getValue().removedSources) {
+                    state.sources.remove(source);
+                    state.outputs.remove(source);
+                    state.costs.remove(source);
+                }
+                candidates.addAll(entry.getValue().outputs);
+            }
+            if (candidates.isEmpty()) return;
+
+            // output directories may be shared, keep everything another proto or target still generates
+            for (BuildManifest.TargetState state : manifest.targets.values()) {
+                for (Set<String> outputs : state.outputs.values()) candidates.removeAll(outputs);
+            }
+            Set<File> outputRoots = new HashSet<File>();
+            for (OutputTarget target : outputTargets) outputRoots.add(target.outputDirectory.getAbsoluteFile());
+            for (String candidate : candidates) {
+                File file = new File(candidate);
+                if (!file.exists()) continue;
+                getLog().info("Removing stale output: " + file);
+                long length = file.length();
+                if (!file.delete()) {
+                    getLog().warn("Unable to remove stale output: " + file);
+                    continue;
+                }
+                metrics.count(BuildMetrics.OUTPUTS_REMOVED, 1);
+                metrics.count(BuildMetrics.OUTPUT_BYTES_REMOVED, length);
+                touched(file);
+                File parent = file.getParentFile();
+                while (parent != null && !outputRoots.contains(parent) && isInside(parent, outputRoots) && parent.delete()) {
+                    parent = parent.getParentFile();
+                }
+            }
+        }
+    }
+
+    private static boolean isInside(File file, Set<File> roots) {
+        for (File parent = file.getParentFile(); parent != null; parent = parent.getParentFile()) {
+            if (roots.contains(parent)) return true;
+        }
+        return false;
+    }
+
+    private String fingerprint(OutputTarget target) throws IOException, MojoExecutionException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("type=").append(target.type).append('\n');
+        sb.append("outputOptions=").append(target.outputOptions).append('\n');
+        if (isAggregated(target)) sb.append("aggregate=").append(target.aggregate).append(':').append(project.getArtifactId()).append(':').append(target.descriptorIndex).append('\n');
+        sb.append("extension=").append(extension).append('\n');
+        sb.append("includeImports=").append(includeImports).append('\n');
+        sb.append("protocVersion=").append(protocVersion).append('\n');
+        sb.append("protocArtifact=").append(protocArtifact).append('\n');
+        // only the configuration, prepareProtoc and preprocessTarget replace protocCommand and pluginPath later on
+        sb.append("protocCommand=").append(configuredProtocCommand).append('\n');
+        if (configuredProtocCommand != null && new File(configuredProtocCommand).isFile()) sb.append(manifest.hash(new File(configuredProtocCommand))).append('\n');
+        if (isEmpty(target.pluginArtifact)) {
+            sb.append("pluginPath=").append(target.pluginPath).append('\n');
+            if (target.pluginPath != null && new File(target.pluginPath).isFile()) sb.append(manifest.hash(new File(target.pluginPath))).append('\n');
+        } else {
+            sb.append("pluginArtifact=").append(target.pluginArtifact).append(':').append(detectPlatform()).append('\n');
+            File artifactFile = localArtifactFile(target.pluginArtifact);
+            sb.append(artifactFile.length()).append('|').append(artifactFile.lastModified()).append('\n');
+        }
+        return BuildManifest.sha1(sb.toString());
+    }
+
+    private void processTargets(List<OutputTarget> targets, List<File> staleFiles) throws MojoExecutionException {
+        runJobs(createJobs(targets, staleFiles), 1);
+    }
+
+    /**
+     * Groups targets that can share one protoc invocation: same stale files, output written by protoc itself and no
+     * language twice, as protoc keeps a single --plugin per name
+     */
+    private List<List<OutputTarget>> groupTargets(Map<OutputTarget, List<File>> staleFiles) {
+        List<List<OutputTarget>> groups = new ArrayList<List<OutputTarget>>();
+        for (OutputTarget target : staleFiles.keySet()) {
+            List<OutputTarget> group = null;
+            if (fuseTargets && isFusable(target)) {
+                for (List<OutputTarget> candidate : groups) {
+                    if (isFusable(candidate.get(0)) && staleFiles.get(candidate.get(0)).equals(staleFiles.get(target)) && !hasType(candidate, protocType(target))) {
+                        group = candidate;
+                        break;
                     }
-                });
-            } else {
-                if (!protoFilesPath.contains(input.getAbsolutePath())) {
-                    protoFilesPath.add(input.getAbsolutePath());
                 }
             }
+            if (group == null) groups.add(group = new ArrayList<OutputTarget>());
+            group.add(target);
+        }
+        for (List<OutputTarget> group : groups) {
+            if (group.size() > 1) getLog().info("Compiling " + group.size() + " targets in one protoc invocation: " + describeTypes(group));
+        }
+        return groups;
+    }
+
+    private boolean isFusable(OutputTarget target) {
+        // descriptor sets are written per file, shaded sources are shaded in their own staging subdirectory
+        return !"descriptor".equals(target.type) && !isFanOutTarget(target) && !isArchive(target.outputDirectory);
+    }
+
+    private static boolean hasType(List<OutputTarget> targets, String type) {
+        for (OutputTarget target : targets) {
+            if (protocType(target).equals(type)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The language protoc generates for the target, shaded targets are plain java until shaded
+     */
+    private static String protocType(OutputTarget target) {
+        return isShaded(target) ? "java" : target.type;
+    }
+
+    private static String describeTypes(List<OutputTarget> targets) {
+        StringBuilder sb = new StringBuilder();
+        for (OutputTarget target : targets) sb.append((sb.length() > 0) ? ", " : "").append(target.type);
+        return sb.toString();
+    }
+
+    private List<Job> createJobs(List<OutputTarget> targets, List<File> staleFiles) {
+        if (targets.size() == 1) return createJobs(targets.get(0), staleFiles);
+        Map<File, Long> costs = estimateCosts(targets, staleFiles);
+        List<Job> jobs = new ArrayList<Job>();
+        for (List<File> unit : units(targets.get(0), staleFiles, costs)) {
+            jobs.add(new Job(() -> {
+                Map<OutputTarget, String> keys = new HashMap<OutputTarget, String>();
+                boolean cached = true;
+                for (OutputTarget target : targets) {
+                    String key = cacheKey(target, unit);
+                    keys.put(target, key);
+                    cached &= key != null && generationCache.contains(key);
+                }
+                if (!cached) {
+                    // restoreOutputs counts the misses of single targets, here it isn't called at all
+                    for (String key : keys.values()) {
+                        if (key != null) generationCache.misses.incrementAndGet();
+                    }
+                }
+                // a single missing target means running protoc anyway, then all outputs come from that run
+                Map<OutputTarget, List<File>> outputs = new HashMap<OutputTarget, List<File>>();
+                for (OutputTarget target : targets) {
+                    List<File> restored = cached ? restoreOutputs(keys.get(target), target, unit) : null;
+                    if (restored == null) {
+                        outputs = null;
+                        break;
+                    }
+                    outputs.put(target, restored);
+                }
+                long nanos = -1;
+                if (outputs == null) {
+                    long start = System.nanoTime();
+                    outputs = processFused(unit, targets);
+                    nanos = (System.nanoTime() - start) / targets.size();
+                    for (OutputTarget target : targets) storeOutputs(keys.get(target), target, outputs.get(target));
+                }
+                for (OutputTarget target : targets) recordOutputs(target, unit, outputs.get(target), nanos);
+                return null;
+            }, cost(unit, costs)));
         }
+        return jobs;
+    }
 
-        for (String protoFilePath : protoFilesPath) {
-            if (target.cleanOutputFolder || buildContext.hasDelta(protoFilePath)) {
-                processFile(new File(protoFilePath), protocVersion, targetType, target.pluginPath, target.outputDirectory, target.outputOptions);
+    private List<Job> createJobs(OutputTarget target, List<File> staleFiles) {
+        String targetType = protocType(target);
+        boolean fromDescriptors = isFanOutTarget(target);
+        List<Job> jobs = new ArrayList<Job>();
+        if (isAggregated(target)) {
+            // every input owns the aggregated sets, a change anywhere rewrites them from the descriptor cache
+            List<File> inputs = sourceSnapshot.files();
+            jobs.add(new Job(() -> {
+                recordOutputs(target, inputs, generateAggregated(target, inputs), -1);
+                return null;
+            }, 0));
+            return jobs;
+        }
+        Map<File, Long> costs = estimateCosts(target, staleFiles);
+        for (List<File> unit : units(target, staleFiles, costs)) {
+            jobs.add(new Job(() -> {
+                String key = cacheKey(target, unit);
+                List<File> outputs = restoreOutputs(key, target, unit);
+                long nanos = -1;
+                if (outputs == null) {
+                    long start = System.nanoTime();
+                    outputs = fromDescriptors ? generateFromDescriptors(target, unit)
+                            : processFiles(unit, protocVersion, targetType, target.pluginPath, target.outputDirectory, target.outputOptions, isShaded(target));
+                    nanos = System.nanoTime() - start;
+                    storeOutputs(key, target, outputs);
+                }
+                recordOutputs(target, unit, outputs, nanos);
+                return null;
+            }, cost(unit, costs)));
+        }
+        return jobs;
+    }
+
+    /**
+     * Splits the stale files of a target into the file sets of its protoc invocations, most expensive first
+     */
+    private List<List<File>> units(OutputTarget target, List<File> staleFiles, Map<File, Long> costs) {
+        List<List<File>> units = new ArrayList<List<File>>();
+        // descriptor sets are written per input file, so they cannot share an invocation
+        if (batchCompile && !"descriptor".equals(target.type)) units.addAll(partitionBatches(staleFiles, batchSize, costs));
+        else for (File file : staleFiles) units.add(Collections.singletonList(file));
+        units.sort((a, b) -> Long.compare(cost(b, costs), cost(a, costs)));
+        return units;
+    }
+
+    private static long cost(List<File> files, Map<File, Long> costs) {
+        long cost = 0;
+        for (File file : files) cost += costs.get(file);
+        return cost;
+    }
+
+    private Map<File, Long> estimateCosts(List<OutputTarget> targets, List<File> files) {
+        if (targets.size() == 1) return estimateCosts(targets.get(0), files);
+        // one invocation compiles for all targets, so it takes about as long as all of them
+        Map<File, Long> costs = new HashMap<File, Long>();
+        for (OutputTarget target : targets) {
+            for (Map.Entry<File, Long> cost : estimateCosts(target, files).entrySet()) costs.merge(cost.getKey(), cost.getValue(), Long::sum);
+        }
+        return costs;
+    }
+
+    /**
+     * Expected protoc time of each file in nanoseconds: the measured time of its last compilation, or its size times the
+     * average time per byte of the target for files without history. Without any history the size is the estimate.
+     */
+    private Map<File, Long> estimateCosts(OutputTarget target, List<File> files) {
+        Map<File, Long> costs = new HashMap<File, Long>();
+        BuildManifest.TargetState state = null;
+        if (manifest != null) {
+            synchronized (manifest) {
+                state = manifest.targets.get(targetKeys.get(target));
+            }
+        }
+        Map<String, Long> history = new HashMap<String, Long>();
+        double nanosPerByte = 1;
+        if (state != null) {
+            synchronized (manifest) {
+                history.putAll(state.costs);
+            }
+            long nanos = 0;
+            long bytes = 0;
+            for (Map.Entry<String, Long> cost : history.entrySet()) {
+                SourceSnapshot.Entry entry = sourceSnapshot.get(new File(cost.getKey()));
+                if (entry == null) continue;
+                nanos += cost.getValue();
+                bytes += entry.size;
+            }
+            if (bytes > 0) nanosPerByte = (double) nanos / bytes;
+        }
+        for (File file : files) {
+            Long cost = history.get(file.getAbsolutePath());
+            if (cost == null) cost = (long) (fileSize(file) * nanosPerByte);
+            costs.put(file, cost);
+        }
+        return costs;
+    }
+
+    /**
+     * Lists the stale files that took far longer than the typical file of their target
+     */
+    private void logOutliers(Map<OutputTarget, List<File>> staleFiles) {
+        if (manifest == null) return;
+        for (Map.Entry<OutputTarget, List<File>> entry : staleFiles.entrySet()) {
+            Map<String, Long> costs;
+            synchronized (manifest) {
+                costs = new HashMap<String, Long>(manifest.targets.get(targetKeys.get(entry.getKey())).costs);
+            }
+            if (costs.size() < 2) continue;
+            List<Long> sorted = new ArrayList<Long>(costs.values());
+            Collections.sort(sorted);
+            long threshold = Math.max(sorted.get(sorted.size() / 2) * OUTLIER_FACTOR, OUTLIER_MIN_NANOS);
+            List<File> outliers = new ArrayList<File>();
+            for (File file : entry.getValue()) {
+                Long cost = costs.get(file.getAbsolutePath());
+                if (cost != null && cost >= threshold) outliers.add(file);
+            }
+            if (outliers.isEmpty()) continue;
+            outliers.sort((a, b) -> Long.compare(costs.get(b.getAbsolutePath()), costs.get(a.getAbsolutePath())));
+            getLog().info("Slow protos (" + entry.getKey().type + "), median " + sorted.get(sorted.size() / 2) / 1000000L + " ms:");
+            for (File file : outliers.subList(0, Math.min(10, outliers.size()))) {
+                getLog().info(String.format("    %10d ms  %s", costs.get(file.getAbsolutePath()) / 1000000L, file));
+            }
+        }
+    }
+
+    /**
+     * Prints what a generation would compile and why, without running protoc or touching any output
+     */
+    private void printPlan(Map<OutputTarget, List<File>> staleFiles) throws MojoExecutionException {
+        if (staleFiles.isEmpty()) {
+            getLog().info("Nothing to compile, proto files appear unchanged since last compilation");
+            return;
+        }
+
+        getLog().info("Include arguments:");
+        for (String arg : includeArgs()) getLog().info("    " + arg);
+
+        long invocations = 0;
+        long files = 0;
+        long bytes = 0;
+        // measured protoc time of earlier builds, only when every target has a history
+        boolean timed = manifest != null;
+        long nanos = 0;
+        long slowestUnit = 0;
+        for (List<OutputTarget> group : groupTargets(staleFiles)) {
+            List<File> stale = staleFiles.get(group.get(0));
+            Map<File, Long> costs = estimateCosts(group, stale);
+            List<List<File>> units = isAggregated(group.get(0)) ? Collections.singletonList(stale) : units(group.get(0), stale, costs);
+            invocations += units.size();
+            for (OutputTarget target : group) timed &= hasCostHistory(target);
+            nanos += cost(stale, costs);
+            slowestUnit = Math.max(slowestUnit, cost(units.get(0), costs));
+            getLog().info("Target " + describeTypes(group) + ": " + stale.size() + " of " + sourceSnapshot.size()
+                    + " files stale, " + units.size() + " protoc invocations");
+            for (OutputTarget target : group) {
+                getLog().info("    Output directory (" + target.type + "): " + target.outputDirectory);
+                // the artifact is resolved for the fingerprint already, its executable is only staged when compiling
+                if (!isEmpty(target.pluginArtifact)) getLog().info("    Plugin artifact: " + target.pluginArtifact);
+                for (String arg : outputArgs(stale, protocType(target), target.pluginPath, target.outputDirectory, target.outputOptions)) {
+                    getLog().info("    Output argument: " + arg);
+                }
+            }
+            Map<String, String> reasons = staleReasons.get(group.get(0));
+            for (File file : stale) {
+                String path = file.getAbsolutePath();
+                getLog().info("    " + file + " (" + reasons.get(path) + ")");
+                files++;
+                bytes += fileSize(file);
+            }
+        }
+        getLog().info("Estimated cost: " + invocations + " protoc invocations over " + files + " files (" + bytes / 1024 + " KB)"
+                + (parallel ? " on " + threadCount() + " threads" : ""));
+        if (timed) {
+            // longest first keeps the wall time close to the larger of the even share and the slowest invocation
+            long wall = parallel ? Math.max(nanos / threadCount(), slowestUnit) : nanos;
+            getLog().info("Estimated protoc time: " + nanos / 1000000L + " ms, about " + wall / 1000000L + " ms wall time");
+        }
+    }
+
+    private boolean hasCostHistory(OutputTarget target) {
+        synchronized (manifest) {
+            BuildManifest.TargetState state = manifest.targets.get(targetKeys.get(target));
+            return state != null && !state.costs.isEmpty();
+        }
+    }
+
+    /**
+     * Key of the outputs of one invocation in the generation cache, null when they are not cached. Only contents go
+     * into it, never local paths, so checkouts and machines share entries.
+     */
+    private String cacheKey(OutputTarget target, List<File> files) throws IOException {
+        if (generationCache == null || isArchive(target.outputDirectory)) return null;
+        StringBuilder sb = new StringBuilder();
+        sb.append("type=").append(target.type).append('\n');
+        sb.append("outputOptions=").append(target.outputOptions).append('\n');
+        sb.append("includeImports=").append(includeImports).append('\n');
+        sb.append("protocVersion=").append(protocVersion).append('\n');
+        sb.append("protoc=").append(toolHash(protocCommand)).append('\n');
+        sb.append("plugin=").append(toolHash(target.pluginPath)).append('\n');
+        // the name protoc sees and the content of the file and everything it imports
+        for (File file : files) sb.append(virtualName(file)).append('=').append(importGraph.dependencyHash(file)).append('\n');
+        return BuildManifest.sha1(sb.toString());
+    }
+
+    private String toolHash(String command) throws IOException {
+        if (command == null) return "none";
+        File file = new File(command);
+        return file.isFile() ? manifest.hash(file) : command;
+    }
+
+    private List<File> restoreOutputs(String key, OutputTarget target, List<File> files) throws MojoExecutionException {
+        if (key == null) return null;
+        File stagingDir = null;
+        try {
+            stagingDir = createStagingDir();
+            if (!generationCache.restore(key, stagingDir)) return null;
+            getLog().info("    Restored from cache (" + target.type + "): " + ((files.size() == 1) ? files.get(0).getName() : describeUnit(files)));
+            removeMessages(files);
+            return publishOutputs(stagingDir, target.outputDirectory);
+        } catch (IOException e) {
+            getLog().warn("Unable to restore from generation cache " + generationCacheDirectory + ": " + e);
+            return null;
+        } finally {
+            if (stagingDir != null) FileUtils.deleteQuietly(stagingDir);
+        }
+    }
+
+    private void storeOutputs(String key, OutputTarget target, List<File> outputs) {
+        if (key == null) return;
+        try {
+            generationCache.store(key, target.outputDirectory, outputs);
+        } catch (IOException e) {
+            getLog().warn("Unable to store in generation cache " + generationCacheDirectory + ": " + e);
+        }
+    }
+
+    private void closeGenerationCache() {
+        int evicted = 0;
+        try {
+            evicted = generationCache.evict();
+        } catch (IOException e) {
+            getLog().warn("Unable to evict from generation cache " + generationCacheDirectory + ": " + e);
+        }
+        getLog().info("Generation cache: " + generationCache.hits + " hits, " + generationCache.misses + " misses, "
+                + generationCache.stores + " stored, " + evicted + " evicted");
+        metrics.count("generationCacheHits", generationCache.hits.get());
+        metrics.count("generationCacheMisses", generationCache.misses.get());
+    }
+
+    private static boolean isAggregated(OutputTarget target) {
+        return "descriptor".equals(target.type) && !"none".equalsIgnoreCase(target.aggregate) && !isArchive(target.outputDirectory);
+    }
+
+    private boolean isFanOutTarget(OutputTarget target) {
+        // aggregated descriptor sets are always assembled from the cached descriptors
+        if (isAggregated(target)) return true;
+        if (!descriptorFanOut || isArchive(target.outputDirectory)) return false;
+        // descriptor options are passed to protoc as they are, only the plain descriptor sets come from the cache
+        if ("descriptor".equals(target.type)) return target.outputOptions == null;
+        return !BUILTIN_TYPES.contains(target.type);
+    }
+
+    private void compileDescriptors(Map<OutputTarget, List<File>> staleFiles) throws MojoExecutionException {
+        Set<File> files = new LinkedHashSet<File>();
+        boolean aggregated = false;
+        for (Map.Entry<OutputTarget, List<File>> entry : staleFiles.entrySet()) {
+            if (isFanOutTarget(entry.getKey())) files.addAll(entry.getValue());
+            aggregated |= isAggregated(entry.getKey());
+        }
+        if (files.isEmpty()) return;
+
+        // per execution, the cached sets only keep what the inputs of this execution need
+        fanOut = new DescriptorFanOut(new File(project.getBuild().getDirectory(), "protoc-descriptors" + File.separator + executionId()));
+        Map<File, List<File>> inputsByParent = new HashMap<File, List<File>>();
+        for (File file : sourceSnapshot.files()) {
+            File parent = file.getAbsoluteFile().getParentFile();
+            List<File> inputs = inputsByParent.get(parent);
+            if (inputs == null) inputsByParent.put(parent, inputs = new ArrayList<File>());
+            inputs.add(file);
+        }
+        // directories without a cached set (first run, cleaned target/) are parsed completely
+        Set<File> parents = new HashSet<File>();
+        for (File file : files) parents.add(file.getAbsoluteFile().getParentFile());
+        // aggregated sets cover every input, unchanged directories come from the cache as they are
+        if (aggregated) parents.addAll(inputsByParent.keySet());
+        for (File parent : parents) {
+            if (!fanOut.descriptorFile(parent).isFile()) files.addAll(inputsByParent.get(parent));
+        }
+
+        getLog().info("Compiling descriptors of " + files.size() + " files for plugin targets");
+        List<Callable<Void>> jobs = new ArrayList<Callable<Void>>();
+        for (List<File> group : partitionBatches(new ArrayList<File>(files), batchSize)) {
+            File parent = group.get(0).getAbsoluteFile().getParentFile();
+            List<String> rootNames = rootNames(inputsByParent.get(parent));
+            jobs.add(() -> {
+                compileDescriptorSet(group, parent, rootNames);
+                return null;
+            });
+        }
+        long start = System.nanoTime();
+        runJobs(jobs, parallel ? threadCount() : 1);
+        for (File parent : parents) {
+            if (Collections.disjoint(files, inputsByParent.get(parent))) {
+                try {
+                    fanOut.update(parent, null, rootNames(inputsByParent.get(parent)));
+                } catch (IOException e) {
+                    throw new MojoExecutionException("Unable to read cached descriptors of " + parent, e);
+                }
+            }
+        }
+        metrics.phase("descriptors", start, files.size(), 0);
+    }
+
+    private List<String> rootNames(List<File> inputs) {
+        List<String> rootNames = new ArrayList<String>();
+        for (File input : inputs) rootNames.add(virtualName(input));
+        return rootNames;
+    }
+
+    private void compileDescriptorSet(List<File> files, File parent, List<String> rootNames) throws MojoExecutionException {
+        long start = System.nanoTime();
+        String unit = describeUnit(files);
+        getLog().info("    Compiling descriptors: " + ((files.size() == 1) ? files.get(0).getName() : unit));
+        File stagingDir = null;
+        try {
+            stagingDir = createStagingDir();
+            File compiledSet = new File(stagingDir, "compiled.desc");
+            List<String> outputArgs = Arrays.asList("--descriptor_set_out=" + compiledSet, "--include_imports", "--include_source_info");
+            runProtoc(files, buildCommand(files, protocVersion, outputArgs), unit);
+            fanOut.update(parent, compiledSet, rootNames);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to compile descriptors for " + unit, e);
+        } finally {
+            metrics.unit(unit, "descriptor_set", Collections.singletonList(targetName("descriptor_set", fanOut.dir())), files.size(), start);
+            if (stagingDir != null) FileUtils.deleteQuietly(stagingDir);
+        }
+    }
+
+    private List<File> generateFromDescriptors(OutputTarget target, List<File> files) throws MojoExecutionException {
+        long start = System.nanoTime();
+        String unit = describeUnit(files);
+        getLog().info("    Generating (" + target.type + ", from descriptors): " + ((files.size() == 1) ? files.get(0).getName() : unit));
+        File parent = files.get(0).getAbsoluteFile().getParentFile();
+        List<String> names = new ArrayList<String>();
+        for (File file : files) names.add(virtualName(file));
+
+        File stagingDir = null;
+        try {
+            stagingDir = createStagingDir();
+            removeMessages(files);
+            if ("descriptor".equals(target.type)) {
+                for (int i = 0; i < files.size(); i++) {
+                    List<FileDescriptorProto> closure = fanOut.closure(parent, Collections.singletonList(names.get(i)));
+                    if (!includeImports) closure = closure.subList(closure.size() - 1, closure.size());
+                    File outFile = new File(stagingDir, FilenameUtils.removeExtension(files.get(i).getName()) + ".desc");
+                    DescriptorFanOut.writeSet(closure, outFile);
+                }
             } else {
-                getLog().info("Not changed " + protoFilePath);
+                // same lookup as protoc: an explicit plugin path, otherwise protoc-gen-<type> from the PATH
+                String command = (target.pluginPath != null) ? target.pluginPath : "protoc-gen-" + target.type;
+                CodeGeneratorRequest request = DescriptorFanOut.request(fanOut.closure(parent, names), names, target.outputOptions, protocVersion);
+                metrics.count(BuildMetrics.PLUGIN_INVOCATIONS, 1);
+                DescriptorFanOut.generate(command, request, stagingDir);
+            }
+            return publishOutputs(stagingDir, target.outputDirectory);
+        } catch (InterruptedException e) {
+            throw new MojoExecutionException("Interrupted", e);
+        } catch (IOException e) {
+            synchronized (buildContext) {
+                for (File file : files) addMessage(file, 0, 0, e.getMessage(), BuildContext.SEVERITY_ERROR);
             }
+            throw new MojoExecutionException("Code generation (" + target.type + ") failed for " + unit, e);
+        } finally {
+            metrics.unit(unit, target.type, Collections.singletonList(targetName(target.type, target.outputDirectory)), files.size(), start);
+            if (stagingDir != null) FileUtils.deleteQuietly(stagingDir);
+        }
+    }
+
+    private List<File> generateAggregated(OutputTarget target, List<File> files) throws MojoExecutionException {
+        long start = System.nanoTime();
+        // one set for everything, or one per input directory named after it
+        Map<String, List<File>> sets = new LinkedHashMap<String, List<File>>();
+        for (File file : files) {
+            String setName = "directory".equalsIgnoreCase(target.aggregate) ? inputRootName(file) : project.getArtifactId();
+            List<File> set = sets.get(setName);
+            if (set == null) sets.put(setName, set = new ArrayList<File>());
+            set.add(file);
+        }
+        boolean sourceInfo = target.outputOptions != null && target.outputOptions.contains("--include_source_info");
+
+        File stagingDir = null;
+        try {
+            stagingDir = createStagingDir();
+            for (Map.Entry<String, List<File>> set : sets.entrySet()) {
+                getLog().info("    Aggregating descriptors: " + set.getKey() + ".desc (" + set.getValue().size() + " files)");
+                Map<File, List<String>> namesByParent = new LinkedHashMap<File, List<String>>();
+                for (File file : set.getValue()) {
+                    File parent = file.getAbsoluteFile().getParentFile();
+                    List<String> names = namesByParent.get(parent);
+                    if (names == null) namesByParent.put(parent, names = new ArrayList<String>());
+                    names.add(virtualName(file));
+                }
+                // closures list dependencies first, merged in order the set stays valid for FileDescriptorSet readers
+                Map<String, FileDescriptorProto> descriptors = new LinkedHashMap<String, FileDescriptorProto>();
+                for (Map.Entry<File, List<String>> entry : namesByParent.entrySet()) {
+                    List<FileDescriptorProto> closure = fanOut.closure(entry.getKey(), entry.getValue());
+                    if (!includeImports) closure = onlyNamed(closure, entry.getValue());
+                    for (FileDescriptorProto fdp : closure) {
+                        FileDescriptorProto existing = descriptors.get(fdp.getName());
+                        if (existing == null) descriptors.put(fdp.getName(), fdp);
+                        else if (!existing.toBuilder().clearSourceCodeInfo().build().equals(fdp.toBuilder().clearSourceCodeInfo().build())) {
+                            getLog().warn("Conflicting descriptors for " + fdp.getName() + " in " + set.getKey() + ".desc, keeping the first one");
+                        }
+                    }
+                }
+                List<FileDescriptorProto> merged = new ArrayList<FileDescriptorProto>(descriptors.values());
+                DescriptorFanOut.writeSet(merged, new File(stagingDir, set.getKey() + ".desc"), sourceInfo);
+                if (target.descriptorIndex) DescriptorFanOut.writeIndex(merged, new File(stagingDir, set.getKey() + ".index"));
+            }
+            return publishOutputs(stagingDir, target.outputDirectory);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to aggregate descriptors for " + target.outputDirectory, e);
+        } finally {
+            metrics.unit(sets.keySet().toString(), target.type, Collections.singletonList(targetName(target.type, target.outputDirectory)), files.size(), start);
+            if (stagingDir != null) FileUtils.deleteQuietly(stagingDir);
         }
+    }
+
+    private static List<FileDescriptorProto> onlyNamed(List<FileDescriptorProto> closure, List<String> names) {
+        List<FileDescriptorProto> named = new ArrayList<FileDescriptorProto>();
+        for (FileDescriptorProto fdp : closure) {
+            if (names.contains(fdp.getName())) named.add(fdp);
+        }
+        return named;
+    }
+
+    private String inputRootName(File file) {
+        String path = file.getAbsolutePath();
+        for (int i = 0; i < inputDirectories.length; i++) {
+            File input = inputDirectories[i].getAbsoluteFile();
+            if (path.equals(input.getPath()) || path.startsWith(input.getPath() + File.separator)) {
+                // input directories are commonly all named "protobuf" or "proto", keep their names apart
+                return input.getName() + ((i > 0) ? "-" + i : "");
+            }
+        }
+        return file.getAbsoluteFile().getParentFile().getName();
+    }
 
-        if (shaded) {
+    private String virtualName(File file) {
+        // the name protoc gives the file: relative to the first -I root that contains it, the parent directory comes last
+        String path = file.getAbsolutePath();
+        if (includeDirectories != null) {
+            for (File include : includeDirectories) {
+                String root = include.getAbsolutePath() + File.separator;
+                if (path.startsWith(root)) return path.substring(root.length()).replace(File.separatorChar, '/');
+            }
+        }
+        return file.getName();
+    }
+
+    /**
+     * Records the outputs of an invocation, with its protoc time in nanoseconds unless negative (e.g. restored outputs)
+     */
+    private void recordOutputs(OutputTarget target, List<File> files, List<File> outputs, long nanos) throws IOException {
+        if (manifest == null) return;
+        // the time of a batch is shared by its files in proportion to their size
+        long bytes = 0;
+        for (File file : files) bytes += fileSize(file);
+        // hashed before taking the manifest lock, the import graph locks the manifest while hashing
+        Map<File, String> hashes = new HashMap<File, String>();
+        for (File file : files) hashes.put(file, importGraph.dependencyHash(file));
+        synchronized (manifest) {
+            BuildManifest.TargetState state = manifest.targets.get(targetKeys.get(target));
+            // files of one batch cannot be told apart, each of them owns all outputs of the invocation
+            Set<String> paths = new HashSet<String>();
+            for (File output : outputs) paths.add(output.getAbsolutePath());
+            for (File file : files) {
+                state.sources.put(file.getAbsolutePath(), hashes.get(file));
+                state.outputs.put(file.getAbsolutePath(), paths);
+                if (nanos >= 0) {
+                    long share = (bytes > 0) ? (long) ((double) nanos * fileSize(file) / bytes) : nanos / files.size();
+                    state.costs.put(file.getAbsolutePath(), share);
+                }
+            }
+        }
+    }
+
+    private long fileSize(File file) {
+        SourceSnapshot.Entry entry = sourceSnapshot.get(file);
+        return (entry != null) ? entry.size : file.length();
+    }
+
+    private int threadCount() {
+        return (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    private void runJobs(List<? extends Callable<Void>> jobs, int threadCount) throws MojoExecutionException {
+        if (threadCount <= 1 || jobs.size() <= 1) {
+            for (Callable<Void> job : jobs) callJob(job);
+            return;
+        }
+
+        getLog().info("Running " + jobs.size() + " protoc jobs on " + threadCount + " threads");
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, jobs.size()), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "protoc-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+            for (Callable<Void> job : jobs) completion.submit(() -> callJob(job));
+            for (int i = 0; i < jobs.size(); i++) {
+                try {
+                    completion.take().get();
+                } catch (ExecutionException e) {
+                    // fail fast, the finally block cancels queued and running jobs
+                    if (e.getCause() instanceof MojoExecutionException) throw (MojoExecutionException) e.getCause();
+                    throw new MojoExecutionException("protoc job failed", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted", e);
+        } finally {
+            executor.shutdownNow();
             try {
-                getLog().info("    Shading (version " + protocVersion + "): " + target.outputDirectory);
-                Protoc.doShading(target.outputDirectory, protocVersion);
-            } catch (IOException e) {
-                throw new MojoExecutionException("Error occurred during shading", e);
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
     }
 
-    private void processFile(File file, String version, String type, String pluginPath, File outputDir, String outputOptions) throws MojoExecutionException {
-        getLog().info("    Processing (" + type + "): " + file.getName());
+    private static Void callJob(Callable<Void> job) throws MojoExecutionException {
+        try {
+            return job.call();
+        } catch (MojoExecutionException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new MojoExecutionException("protoc job failed", e);
+        }
+    }
 
+    private List<File> processFiles(List<File> files, String version, String type, String pluginPath, File outputDir, String outputOptions, boolean shade) throws MojoExecutionException {
+        long start = System.nanoTime();
+        String unit = describeUnit(files);
+        getLog().info("    Processing (" + type + "): " + ((files.size() == 1) ? files.get(0).getName() : unit));
+
+        // protoc writes into a private staging directory, so the files of this invocation are known exactly
+        File stagingDir = null;
         try {
-            buildContext.removeMessages(file);
+            if (!isArchive(outputDir)) stagingDir = createStagingDir();
+            List<String> outputArgs = outputArgs(files, type, pluginPath, (stagingDir != null) ? stagingDir : outputDir, outputOptions);
+            runProtoc(files, buildCommand(files, version, outputArgs), unit);
+            if (stagingDir == null) {
+                touched(outputDir);
+                return Collections.singletonList(outputDir);
+            }
+            // shaded before publishing, so unchanged outputs are still recognized and the output folder written once
+            if (shade) shadeOutputs(stagingDir);
+            return publishOutputs(stagingDir, outputDir);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to execute protoc-jar for " + unit, e);
+        } finally {
+            metrics.unit(unit, type, Collections.singletonList(targetName(type, outputDir)), files.size(), start);
+            if (stagingDir != null) FileUtils.deleteQuietly(stagingDir);
+        }
+    }
+
+    private Map<OutputTarget, List<File>> processFused(List<File> files, List<OutputTarget> targets) throws MojoExecutionException {
+        long start = System.nanoTime();
+        String unit = describeUnit(files);
+        getLog().info("    Processing (" + describeTypes(targets) + "): " + ((files.size() == 1) ? files.get(0).getName() : unit));
+
+        // one --X_out per target, each into its own staging subdirectory so outputs are attributed to their target
+        File stagingDir = null;
+        try {
+            stagingDir = createStagingDir();
+            List<String> outputArgs = new ArrayList<String>();
+            for (int i = 0; i < targets.size(); i++) {
+                OutputTarget target = targets.get(i);
+                File targetDir = new File(stagingDir, String.valueOf(i));
+                targetDir.mkdirs();
+                outputArgs.addAll(outputArgs(files, protocType(target), target.pluginPath, targetDir, target.outputOptions));
+            }
+            runProtoc(files, buildCommand(files, protocVersion, outputArgs), unit);
+
+            Map<OutputTarget, List<File>> outputs = new HashMap<OutputTarget, List<File>>();
+            for (int i = 0; i < targets.size(); i++) {
+                File targetDir = new File(stagingDir, String.valueOf(i));
+                if (isShaded(targets.get(i))) shadeOutputs(targetDir);
+                outputs.put(targets.get(i), publishOutputs(targetDir, targets.get(i).outputDirectory));
+            }
+            return outputs;
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to execute protoc-jar for " + unit, e);
+        } finally {
+            List<String> names = new ArrayList<String>();
+            for (OutputTarget target : targets) names.add(targetName(target.type, target.outputDirectory));
+            metrics.unit(unit, describeTypes(targets), names, files.size(), start);
+            if (stagingDir != null) FileUtils.deleteQuietly(stagingDir);
+        }
+    }
+
+    private void shadeOutputs(File stagingDir) throws IOException {
+        long start = System.nanoTime();
+        Collection<File> sources = FileUtils.listFiles(stagingDir, new String[]{"java"}, true);
+        int shaded = new SourceShader(protocVersion).shade(sources);
+        getLog().debug("    Shaded (version " + protocVersion + "): " + shaded + " of " + sources.size() + " files");
+        metrics.phase("shading", start, shaded, 0);
+    }
+
+    /**
+     * Name of an output target in the timing report, targets of one type are told apart by their folder
+     */
+    static String targetName(String type, File outputDir) {
+        return type + ": " + outputDir;
+    }
+
+    private static String describeUnit(List<File> files) {
+        return (files.size() == 1) ? files.get(0).toString() : files.size() + " files in " + files.get(0).getParent();
+    }
+
+    private File createStagingDir() throws IOException {
+        File stagingRoot = new File(project.getBuild().getDirectory(), "protoc-staging");
+        stagingRoot.mkdirs();
+        return Files.createTempDirectory(stagingRoot.toPath(), "protoc").toFile();
+    }
+
+    private void runProtoc(List<File> files, List<String> cmd, String unit) throws MojoExecutionException, IOException {
+        File argFile = null;
+        for (String arg : cmd) if (arg.startsWith("@")) argFile = new File(arg.substring(1));
+        try {
+            removeMessages(files);
+            // capture output per invocation and echo it in one piece, so parallel jobs do not interleave
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             ByteArrayOutputStream err = new ByteArrayOutputStream();
-            TeeOutputStream outTee = new TeeOutputStream(System.out, out);
-            TeeOutputStream errTee = new TeeOutputStream(System.err, err);
 
             int ret = 0;
-            Collection<String> cmd = buildCommand(file, version, type, pluginPath, outputDir, outputOptions);
-            if (protocCommand == null) ret = Protoc.runProtoc(cmd.toArray(new String[0]), outTee, errTee);
-            else ret = Protoc.runProtoc(protocCommand, Arrays.asList(cmd.toArray(new String[0])), outTee, errTee);
+            metrics.count(BuildMetrics.PROTOC_INVOCATIONS, 1);
+            try {
+                if (protocCommand == null) ret = Protoc.runProtoc(cmd.toArray(new String[0]), out, err);
+                else ret = Protoc.runProtoc(protocCommand, cmd, out, err);
+            } finally {
+                echo(out, System.out);
+                echo(err, System.err);
+            }
 
             // add eclipse m2e warnings/errors
             String errStr = err.toString();
             if (!isEmpty(errStr)) {
                 int severity = (ret != 0) ? BuildContext.SEVERITY_ERROR : BuildContext.SEVERITY_WARNING;
-                String[] lines = errStr.split("\\n", -1);
-                for (String line : lines) {
-                    int lineNum = 0;
-                    int colNum = 0;
-                    String msg = line;
-                    if (line.contains(file.getName())) {
-                        String[] parts = line.split(":", 4);
-                        if (parts.length == 4) {
-                            try {
-                                lineNum = Integer.parseInt(parts[1]);
-                                colNum = Integer.parseInt(parts[2]);
-                                msg = parts[3];
-                            } catch (Exception e) {
-                                getLog().warn("Failed to parse protoc warning/error for " + file);
-                            }
-                        }
-                    }
-                    buildContext.addMessage(file, lineNum, colNum, msg, severity, null);
+                synchronized (buildContext) {
+                    addMessages(files, errStr, severity);
                 }
             }
 
-            if (ret != 0) throw new MojoExecutionException("protoc-jar failed for " + file + ". Exit code " + ret);
+            if (ret != 0) throw new MojoExecutionException("protoc-jar failed for " + unit + ". Exit code " + ret);
         } catch (InterruptedException e) {
             throw new MojoExecutionException("Interrupted", e);
-        } catch (IOException e) {
-            throw new MojoExecutionException("Unable to execute protoc-jar for " + file, e);
+        } finally {
+            if (argFile != null) argFile.delete();
         }
     }
 
-    private Collection<String> buildCommand(File file, String version, String type, String pluginPath, File outputDir, String outputOptions) throws MojoExecutionException {
-        Collection<String> cmd = new ArrayList<String>();
-        populateIncludes(cmd);
-        cmd.add("-I" + file.getParentFile().getAbsolutePath());
+    private List<File> publishOutputs(File stagingDir, File outputDir) throws IOException {
+        List<File> outputs = new ArrayList<File>();
+        int unchanged = 0;
+        for (File staged : FileUtils.listFiles(stagingDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE)) {
+            File output = new File(outputDir, stagingDir.toURI().relativize(staged.toURI()).getPath());
+            outputs.add(output);
+            // identical files keep their timestamp, so incremental compilers downstream don't see a change
+            if (writeIfChanged && output.isFile() && output.length() == staged.length() && FileUtils.contentEquals(staged, output)) {
+                unchanged++;
+                continue;
+            }
+            output.getParentFile().mkdirs();
+            metrics.count(BuildMetrics.OUTPUT_BYTES_WRITTEN, staged.length());
+            Files.move(staged.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            touched(output);
+        }
+        metrics.count(BuildMetrics.OUTPUTS_WRITTEN, outputs.size() - unchanged);
+        metrics.count(BuildMetrics.OUTPUTS_UNCHANGED, unchanged);
+        if (unchanged > 0) getLog().debug("    Unchanged outputs kept: " + unchanged + " of " + outputs.size());
+        return outputs;
+    }
+
+    private static void echo(ByteArrayOutputStream captured, PrintStream stream) {
+        if (captured.size() == 0) return;
+        synchronized (stream) {
+            stream.write(captured.toByteArray(), 0, captured.size());
+            stream.flush();
+        }
+    }
+
+    private void addMessages(List<File> files, String errStr, int severity) {
+        // protoc reports "<name>:<line>:<column>: <message>", with <name> relative to the -I root of the batch
+        Map<String, File> byName = new HashMap<String, File>();
+        for (File file : files) byName.put(file.getName(), file);
+
+        File lastFile = null;
+        for (String line : errStr.split("\\r?\\n")) {
+            if (line.trim().isEmpty()) continue;
+            int lineNum = 0;
+            int colNum = 0;
+            String msg = line;
+            File file = null;
+            String[] parts = line.split(":", 4);
+            if (parts.length == 4) {
+                file = byName.get(parts[0].trim());
+                if (file == null) file = byName.get(new File(parts[0].trim()).getName());
+                if (file != null) {
+                    try {
+                        lineNum = Integer.parseInt(parts[1]);
+                        colNum = Integer.parseInt(parts[2]);
+                        msg = parts[3];
+                    } catch (Exception e) {
+                        getLog().warn("Failed to parse protoc warning/error for " + file);
+                    }
+                }
+            }
+            if (file == null && files.size() > 1) {
+                for (File candidate : files) {
+                    if (line.contains(candidate.getName())) file = candidate;
+                }
+            }
+            if (file == null) file = lastFile;
+            if (file != null) {
+                addMessage(file, lineNum, colNum, msg, severity);
+                lastFile = file;
+            } else {
+                // not attributable to a single file of the batch
+                for (File candidate : files) addMessage(candidate, 0, 0, msg, severity);
+            }
+        }
+    }
+
+    private void addMessage(File file, int line, int column, String message, int severity) {
+        buildContext.addMessage(file, line, column, message, severity, null);
+        if (manifest != null) manifest.addMessages(file);
+    }
+
+    private void removeMessages(List<File> files) {
+        synchronized (buildContext) {
+            for (File file : files) {
+                // most protos never had a message, clearing them is work for the IDE all the same
+                if (manifest == null || manifest.removeMessages(file)) buildContext.removeMessages(file);
+            }
+        }
+    }
+
+    List<String> outputArgs(List<File> files, String type, String pluginPath, File outputDir, String outputOptions) {
+        List<String> args = new ArrayList<String>();
         if ("descriptor".equals(type)) {
-            File outFile = new File(outputDir, file.getName());
-            cmd.add("--descriptor_set_out=" + FilenameUtils.removeExtension(outFile.toString()) + ".desc");
+            File outFile = new File(outputDir, files.get(0).getName());
+            args.add("--descriptor_set_out=" + FilenameUtils.removeExtension(outFile.toString()) + ".desc");
             if (includeImports) {
-                cmd.add("--include_imports");
+                args.add("--include_imports");
             }
             if (outputOptions != null) {
-                for (String arg : outputOptions.split("\\s+")) cmd.add(arg);
+                for (String arg : outputOptions.split("\\s+")) args.add(arg);
             }
         } else {
             if (outputOptions != null) {
-                cmd.add("--" + type + "_out=" + outputOptions + ":" + outputDir);
+                args.add("--" + type + "_out=" + outputOptions + ":" + outputDir);
             } else {
-                cmd.add("--" + type + "_out=" + outputDir);
+                args.add("--" + type + "_out=" + outputDir);
             }
 
             if (pluginPath != null) {
                 getLog().info("    Plugin path: " + pluginPath);
-                cmd.add("--plugin=protoc-gen-" + type + "=" + pluginPath);
+                args.add("--plugin=protoc-gen-" + type + "=" + pluginPath);
             }
         }
-        cmd.add(file.toString());
+        return args;
+    }
+
+    List<String> buildCommand(List<File> files, String version, List<String> outputArgs) throws MojoExecutionException, IOException {
+        List<String> cmd = new ArrayList<String>();
+        populateIncludes(cmd);
+        cmd.add("-I" + files.get(0).getParentFile().getAbsolutePath());
+        cmd.addAll(outputArgs);
+
+        List<String> fileArgs = new ArrayList<String>();
+        for (File file : files) fileArgs.add(file.toString());
+        if (commandLength(cmd) + commandLength(fileArgs) > MAX_COMMAND_LENGTH) cmd.add("@" + writeArgFile(fileArgs));
+        else cmd.addAll(fileArgs);
+
         if (version != null) cmd.add("-v" + version);
         return cmd;
     }
 
-    private void populateIncludes(Collection<String> args) throws MojoExecutionException {
+    private File writeArgFile(List<String> args) throws IOException {
+        // protoc reads one argument per line from an @argfile
+        File argDir = new File(project.getBuild().getDirectory(), "protoc-args");
+        argDir.mkdirs();
+        File argFile = File.createTempFile("protoc", ".args", argDir);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(argFile), "UTF-8");
+        try {
+            for (String arg : args) writer.write(arg + "\n");
+        } finally {
+            writer.close();
+        }
+        return argFile;
+    }
+
+    void populateIncludes(Collection<String> args) throws MojoExecutionException {
+        args.addAll(includeArgs());
+    }
+
+    /**
+     * Returns the -I arguments of the include directories, they are checked once and shared by all invocations
+     */
+    private synchronized List<String> includeArgs() throws MojoExecutionException {
+        if (includeArgs == null) includeArgs = Collections.unmodifiableList(includeArgs(includeDirectories));
+        return includeArgs;
+    }
+
+    static List<String> includeArgs(File[] includeDirectories) throws MojoExecutionException {
+        List<String> args = new ArrayList<String>();
         for (File include : includeDirectories) {
             if (!include.exists())
                 throw new MojoExecutionException("Include path '" + include.getPath() + "' does not exist");
@@ -492,9 +1857,13 @@ public class ProtocMojo extends AbstractMojo {
                 throw new MojoExecutionException("Include path '" + include.getPath() + "' is not a directory");
             args.add("-I" + include.getPath());
         }
+        return args;
     }
 
-    private void addGeneratedSources(OutputTarget target) throws MojoExecutionException {
+    /**
+     * Adds the output folder as source root and refreshes what changed in it, returns the number of refreshed files
+     */
+    private int addGeneratedSources(OutputTarget target) throws MojoExecutionException {
         boolean mainAddSources = "main".endsWith(target.addSources);
         boolean testAddSources = "test".endsWith(target.addSources);
 
@@ -507,16 +1876,43 @@ public class ProtocMojo extends AbstractMojo {
             project.addTestCompileSourceRoot(target.outputDirectory.getAbsolutePath());
         }
         if (mainAddSources || testAddSources) {
-            buildContext.refresh(target.outputDirectory);
+            if (cleanedTargets.contains(target)) {
+                buildContext.refresh(target.outputDirectory);
+                return 1;
+            }
+            // targets may share an output directory, each file is refreshed once
+            File root = target.outputDirectory.getAbsoluteFile();
+            List<File> refreshed = new ArrayList<File>();
+            synchronized (touchedOutputs) {
+                for (File file : touchedOutputs) {
+                    if (file.equals(root) || isInside(file, Collections.singleton(root))) refreshed.add(file);
+                }
+                touchedOutputs.removeAll(refreshed);
+            }
+            for (File file : refreshed) buildContext.refresh(file);
+            if (!refreshed.isEmpty()) getLog().debug("Refreshed " + refreshed.size() + " generated files (" + target.type + ")");
+            return refreshed.size();
+        }
+        return 0;
+    }
+
+    private void touched(File output) {
+        synchronized (touchedOutputs) {
+            touchedOutputs.add(output.getAbsoluteFile());
         }
     }
 
+    private static boolean isShaded(OutputTarget target) {
+        return target.type.equals("java-shaded") || target.type.equals("java_shaded");
+    }
+
     private boolean hasIncludeMavenTypes() {
         return includeMavenTypes.equalsIgnoreCase("direct") || includeMavenTypes.equalsIgnoreCase("transitive");
     }
 
     private void addIncludeDir(File dir) {
         includeDirectories = addDir(includeDirectories, dir);
+        includeArgs = null;
     }
 
     private void addInputDir(File dir) {
@@ -527,44 +1923,23 @@ public class ProtocMojo extends AbstractMojo {
         return compileMavenTypes.equalsIgnoreCase("direct") || compileMavenTypes.equalsIgnoreCase("transitive");
     }
 
-    private void extractProtosFromDependencies(File dir, boolean transitive) throws IOException {
-        for (Artifact artifact : getArtifactsForProtoExtraction(transitive)) {
-            if (artifact.getFile() == null) continue;
-            getLog().debug("  Scanning artifact: " + artifact.getFile());
-            InputStream is = null;
-            try {
-                if (artifact.getFile().isDirectory()) {
-                    for (File f : listFilesRecursively(artifact.getFile(), extension, new ArrayList<File>())) {
-                        is = new FileInputStream(f);
-                        String name = f.getAbsolutePath().replace(artifact.getFile().getAbsolutePath(), "");
-                        if (name.startsWith("/")) name = name.substring(1);
-                        writeProtoFile(dir, is, name);
-                        is.close();
-                    }
-                } else {
-                    ZipInputStream zis = new ZipInputStream(new FileInputStream(artifact.getFile()));
-                    is = zis;
-                    ZipEntry ze;
-                    while ((ze = zis.getNextEntry()) != null) {
-                        if (ze.isDirectory() || !ze.getName().toLowerCase().endsWith(extension)) continue;
-                        writeProtoFile(dir, zis, ze.getName());
-                        zis.closeEntry();
-                    }
-                }
-            } catch (IOException e) {
-                getLog().info("  Error scanning artifact: " + artifact.getFile() + ": " + e);
-            } finally {
-                if (is != null) is.close();
-            }
-        }
+    /**
+     * Folder of the dependency protos of this execution, other executions may select other dependencies
+     */
+    private File dependencyDir(String name) {
+        return new File(project.getBuild().getDirectory(), "protoc-dependencies" + File.separator + executionId() + File.separator + name);
     }
 
-    private List<File> listFilesRecursively(File directory, String ext, List<File> list) {
-        for (File f : directory.listFiles()) {
-            if (f.isFile() && f.canRead() && f.getName().toLowerCase().endsWith(ext)) list.add(f);
-            else if (f.isDirectory() && f.canExecute()) listFilesRecursively(f, ext, list);
+    private void extractProtosFromDependencies(File dir, boolean transitive) throws IOException {
+        List<File> artifactFiles = new ArrayList<File>();
+        for (Artifact artifact : getArtifactsForProtoExtraction(transitive)) {
+            if (artifact.getFile() != null) artifactFiles.add(artifact.getFile());
         }
-        return list;
+        boolean failOnConflict = "error".equalsIgnoreCase(dependencyConflicts);
+        DependencyProtoExtractor extractor = new DependencyProtoExtractor(dir, extension, getLog(), threadCount(), failOnConflict);
+        extractor.extract(artifactFiles);
+        metrics.count(BuildMetrics.PROTOS_EXTRACTED, extractor.written.get());
+        metrics.count(BuildMetrics.PROTO_BYTES_EXTRACTED, extractor.bytesWritten.get());
     }
 
     private Set<Artifact> getArtifactsForProtoExtraction(boolean transitive) {
@@ -572,37 +1947,47 @@ public class ProtocMojo extends AbstractMojo {
         return project.getDependencyArtifacts();
     }
 
-    private void writeProtoFile(File dir, InputStream zis, String name) throws IOException {
-        getLog().info("    " + name);
-        File protoOut = new File(dir, name);
-        protoOut.getParentFile().mkdirs();
-        FileOutputStream fos = null;
+    private File resolveArtifact(String artifactSpec, File dir) throws MojoExecutionException {
         try {
-            fos = new FileOutputStream(protoOut);
-            streamCopy(zis, fos);
-        } finally {
-            if (fos != null) fos.close();
+            String[] as = parseArtifactSpec(artifactSpec, detectPlatform());
+            File tempFile = File.createTempFile(as[1], "." + as[3], dir);
+            copyFile(resolveArtifactFile(artifactSpec), tempFile);
+            if (!tempFile.setExecutable(true)) getLog().warn("Unable to make " + tempFile + " executable");
+            tempFile.deleteOnExit();
+            return tempFile;
+        } catch (Exception e) {
+            throw new MojoExecutionException("Error resolving artifact: " + artifactSpec, e);
         }
     }
 
-    private File resolveArtifact(String artifactSpec, File dir) throws MojoExecutionException {
+    private File resolveArtifactFile(String artifactSpec) throws MojoExecutionException {
         try {
-            Properties detectorProps = new Properties();
-            new PlatformDetector().detect(detectorProps, null);
-            String platform = detectorProps.getProperty("os.detected.classifier");
-
+            String platform = detectPlatform();
             getLog().info("Resolving artifact: " + artifactSpec + ", platform: " + platform);
             String[] as = parseArtifactSpec(artifactSpec, platform);
             Artifact artifact = artifactFactory.createDependencyArtifact(as[0], as[1], VersionRange.createFromVersionSpec(as[2]), as[3], as[4], Artifact.SCOPE_RUNTIME);
             artifactResolver.resolve(artifact, remoteRepositories, localRepository);
-
-            File tempFile = File.createTempFile(as[1], "." + as[3], dir);
-            copyFile(artifact.getFile(), tempFile);
-            tempFile.setExecutable(true);
-            tempFile.deleteOnExit();
-            return tempFile;
+            return artifact.getFile();
         } catch (Exception e) {
             throw new MojoExecutionException("Error resolving artifact: " + artifactSpec, e);
         }
     }
+
+    /**
+     * Returns the artifact in the local repository without resolving it, unless it is not there yet or given by a
+     * version range. A rebuilt SNAPSHOT in the local repository is seen by its size and modification time.
+     */
+    private File localArtifactFile(String artifactSpec) throws MojoExecutionException {
+        String[] as = parseArtifactSpec(artifactSpec, detectPlatform());
+        if (!as[2].startsWith("[") && !as[2].startsWith("(")) {
+            Artifact artifact = artifactFactory.createArtifactWithClassifier(as[0], as[1], as[2], as[3], as[4]);
+            File file = new File(localRepository.getBasedir(), localRepository.pathOf(artifact));
+            if (file.isFile()) return file;
+        }
+        return resolveArtifactFile(artifactSpec);
+    }
+
+    private static String detectPlatform() {
+        return ReactorCache.platform();
+    }
 }
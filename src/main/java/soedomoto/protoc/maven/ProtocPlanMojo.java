@@ -0,0 +1,16 @@
+package soedomoto.protoc.maven;
+
+import org.apache.maven.plugins.annotations.Mojo;
+
+/**
+ * Dry run of the generate goal: prints the stale files of every target with the reason they are stale, the include
+ * arguments and the number of protoc invocations. Like generate it stages std types and dependency protos under
+ * target/ and resolves plugin artifacts, which may download them, as the up-to-date check needs them. It doesn't run
+ * protoc, write outputs or update the build manifest.
+ */
+@Mojo(name = "plan")
+public class ProtocPlanMojo extends ProtocMojo {
+    public ProtocPlanMojo() {
+        dryRun = true;
+    }
+}
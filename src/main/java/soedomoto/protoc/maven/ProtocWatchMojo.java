@@ -0,0 +1,117 @@
+package soedomoto.protoc.maven;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates like the generate goal, then keeps protoc and the include trees prepared and regenerates the affected
+ * files whenever protos below the input or include directories change, until the build is interrupted. Failed
+ * generations, the first one included, are logged and the watch goes on. With timingReport every generation
+ * rewrites the report with its own timings.
+ */
+@Mojo(name = "watch")
+public class ProtocWatchMojo extends ProtocMojo {
+    // quiet period in milliseconds, saving several files or a checkout ends up in one regeneration
+    @Parameter(property = "watchDebounce", defaultValue = "200")
+    int watchDebounce;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        try {
+            super.execute();
+        } catch (MojoExecutionException e) {
+            // a broken proto at startup gets fixed while watching, unless the inputs could not even be scanned
+            if (!isPrepared()) throw e;
+            getLog().error(e.getMessage());
+        }
+        if (!isPrepared()) return;
+        if (!optimizeCodegen) getLog().warn("optimizeCodegen is off, every change regenerates all files");
+
+        try {
+            watch();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to watch proto directories", e);
+        }
+    }
+
+    private void watch() throws IOException, InterruptedException {
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        try {
+            Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+            File buildDir = new File(project.getBuild().getDirectory()).getAbsoluteFile();
+            for (File[] roots : new File[][]{inputDirectories, includeDirectories}) {
+                if (roots == null) continue;
+                for (File root : roots) {
+                    // staged std types and dependency protos under target/ don't change while watching
+                    if (root.isDirectory() && !root.getAbsolutePath().startsWith(buildDir.getPath() + File.separator)) register(watcher, root.toPath(), keys);
+                }
+            }
+            getLog().info("Watching " + keys.size() + " directories for changes");
+
+            while (true) {
+                boolean changed = handle(watcher.take(), keys, watcher);
+                WatchKey key;
+                while ((key = watcher.poll(watchDebounce, TimeUnit.MILLISECONDS)) != null) changed |= handle(key, keys, watcher);
+                if (!changed) continue;
+
+                long start = System.nanoTime();
+                try {
+                    regenerate();
+                    getLog().info("Regenerated in " + (System.nanoTime() - start) / 1000000L + " ms, watching for changes");
+                } catch (MojoExecutionException e) {
+                    // broken protos are common while editing, keep watching
+                    getLog().error(e.getMessage());
+                }
+            }
+        } finally {
+            watcher.close();
+        }
+    }
+
+    private boolean handle(WatchKey key, Map<WatchKey, Path> keys, WatchService watcher) throws IOException {
+        Path dir = keys.get(key);
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                changed = true;
+                continue;
+            }
+            Path child = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+                register(watcher, child, keys);
+                changed = true;
+            } else if (child.getFileName().toString().toLowerCase().endsWith("." + extension.toLowerCase())) {
+                changed = true;
+            } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE && keys.containsValue(child)) {
+                // a removed directory may have held protos
+                changed = true;
+            }
+        }
+        if (!key.reset()) keys.remove(key);
+        return changed;
+    }
+
+    private static void register(WatchService watcher, Path root, Map<WatchKey, Path> keys) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                keys.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,98 @@
+package soedomoto.protoc.maven;
+
+import com.github.os72.protocjar.PlatformDetector;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.*;
+
+/**
+ * JVM-wide cache of results that don't depend on the module being built: platform detection, protoc extraction and
+ * probes, std types and the protos of dependency artifacts.
+ * <p>
+ * It lives as long as the plugin's class realm, i.e. a whole reactor build, and across builds under mvnd, which keeps
+ * the realm. Keys contain everything a value depends on (version, artifact path with size and modification time), so a
+ * changed input simply is a new entry. Values of changing inputs are stored in a slot, e.g. per artifact path, which
+ * holds only the latest key, so rebuilt SNAPSHOTs don't pile up in a long-lived JVM. Each key is computed once even
+ * when modules run in parallel with -T, a failed computation is not cached.
+ */
+final class ReactorCache {
+    private static final ConcurrentMap<String, Future<Object>> VALUES = new ConcurrentHashMap<String, Future<Object>>();
+    // slot -> its latest key
+    private static final ConcurrentMap<String, String> SLOTS = new ConcurrentHashMap<String, String>();
+    private static volatile String platform;
+
+    interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    interface Validator<T> {
+        boolean isValid(T value);
+    }
+
+    private ReactorCache() {
+    }
+
+    static String platform() {
+        if (platform == null) {
+            Properties detectorProps = new Properties();
+            new PlatformDetector().detect(detectorProps, null);
+            platform = detectorProps.getProperty("os.detected.classifier");
+        }
+        return platform;
+    }
+
+    /**
+     * Forgets all values, for measurements of the uncached paths
+     */
+    static void clear() {
+        SLOTS.clear();
+        VALUES.clear();
+    }
+
+    static <T> T get(String key, Loader<T> loader) throws IOException {
+        return get(key, loader, null);
+    }
+
+    /**
+     * Like {@link #get(String, Loader, Validator)}, a new key for the slot drops the value of its previous key
+     */
+    static <T> T get(String slot, String key, Loader<T> loader, Validator<T> validator) throws IOException {
+        String previous = SLOTS.put(slot, key);
+        if (previous != null && !previous.equals(key)) VALUES.remove(previous);
+        return get(key, loader, validator);
+    }
+
+    /**
+     * Returns the cached value, loading it if absent or no longer valid (e.g. a cached file was deleted)
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T get(String key, Loader<T> loader, Validator<T> validator) throws IOException {
+        while (true) {
+            Future<Object> future = VALUES.get(key);
+            boolean loaded = false;
+            if (future == null) {
+                FutureTask<Object> task = new FutureTask<Object>(() -> loader.load());
+                future = VALUES.putIfAbsent(key, task);
+                if (future == null) {
+                    future = task;
+                    task.run();
+                    loaded = true;
+                }
+            }
+            try {
+                T value = (T) future.get();
+                if (loaded || validator == null || validator.isValid(value)) return value;
+                VALUES.remove(key, future);
+            } catch (ExecutionException e) {
+                VALUES.remove(key, future);
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package soedomoto.protoc.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+
+/**
+ * Rewrites generated java sources to the protobuf runtime shaded into protoc-jar, the same replacement as
+ * {@code Protoc.doShading} but only for the given files.
+ * <p>
+ * Files run in parallel, each is read once and only written if it still refers to the unshaded package.
+ */
+class SourceShader {
+    private static final String PACKAGE = "com.google.protobuf";
+    private final String replacement;
+
+    SourceShader(String protocVersion) {
+        this.replacement = "com.github.os72.protobuf" + protocVersion.replace(".", "");
+    }
+
+    /**
+     * Returns the number of files rewritten
+     */
+    int shade(Collection<File> files) throws IOException {
+        try {
+            return (int) files.parallelStream().filter(file -> {
+                try {
+                    return shade(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).count();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    boolean shade(File file) throws IOException {
+        if (!file.getName().endsWith(".java")) return false;
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        // already shaded, or nothing protobuf related in it
+        if (!content.contains(PACKAGE)) return false;
+        Files.write(file.toPath(), content.replace(PACKAGE, replacement).getBytes(StandardCharsets.UTF_8));
+        return true;
+    }
+}
@@ -0,0 +1,86 @@
+package soedomoto.protoc.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Immutable, deduplicated snapshot of the files with a given extension below a set of roots, walked once with
+ * {@link Files#walkFileTree} so size and modification time come with the directory listing
+ */
+final class SourceSnapshot {
+    private final Map<String, Entry> entries;
+
+    static final class Entry {
+        final File file;
+        final long size;
+        final long lastModified;
+
+        Entry(File file, long size, long lastModified) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private SourceSnapshot(Map<String, Entry> entries) {
+        this.entries = Collections.unmodifiableMap(entries);
+    }
+
+    static SourceSnapshot scan(File[] roots, String extension) throws IOException {
+        final String suffix = "." + extension.toLowerCase();
+        final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        if (roots == null) return new SourceSnapshot(entries);
+
+        for (File root : roots) {
+            if (root == null) continue;
+            File absoluteRoot = root.getAbsoluteFile();
+            if (!absoluteRoot.isDirectory()) {
+                // a single file given as input, compiled whatever its extension
+                if (!entries.containsKey(absoluteRoot.getPath())) {
+                    entries.put(absoluteRoot.getPath(), new Entry(absoluteRoot, absoluteRoot.length(), absoluteRoot.lastModified()));
+                }
+                continue;
+            }
+
+            Files.walkFileTree(absoluteRoot.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (!attrs.isRegularFile() || !file.getFileName().toString().toLowerCase().endsWith(suffix)) return FileVisitResult.CONTINUE;
+                    String path = file.toString();
+                    if (!entries.containsKey(path)) {
+                        entries.put(path, new Entry(file.toFile(), attrs.size(), attrs.lastModifiedTime().toMillis()));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // unreadable entries are skipped, like File.listFiles did
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        return new SourceSnapshot(entries);
+    }
+
+    List<File> files() {
+        List<File> files = new ArrayList<File>(entries.size());
+        for (Entry entry : entries.values()) files.add(entry.file);
+        return files;
+    }
+
+    Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    Entry get(File file) {
+        return entries.get(file.getAbsolutePath());
+    }
+
+    int size() {
+        return entries.size();
+    }
+}
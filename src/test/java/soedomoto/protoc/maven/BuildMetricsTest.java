@@ -0,0 +1,46 @@
+package soedomoto.protoc.maven;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BuildMetricsTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void aggregatesInvocationsPerTarget() {
+        BuildMetrics metrics = new BuildMetrics();
+        metrics.unit("a", "java", Collections.singletonList("java: out"), 3, System.nanoTime());
+        metrics.unit("b", "java, python", Arrays.asList("java: out", "python: py"), 2, System.nanoTime());
+
+        Map<String, BuildMetrics.TargetTotal> totals = metrics.targetTotals();
+        assertEquals(Arrays.asList("java: out", "python: py"), Arrays.asList(totals.keySet().toArray()));
+        assertEquals(2, totals.get("java: out").invocations);
+        assertEquals(5L, totals.get("java: out").files);
+        assertEquals(1, totals.get("python: py").invocations);
+        assertEquals(2L, totals.get("python: py").files);
+    }
+
+    @Test
+    public void writesTargetsSection() throws Exception {
+        BuildMetrics metrics = new BuildMetrics();
+        metrics.phase("prune", System.nanoTime(), 2, 100);
+        metrics.unit("a", "java", Collections.singletonList("java: \"out\""), 3, System.nanoTime());
+        File report = new File(tmp.getRoot(), "report/timing.json");
+        metrics.write(report);
+
+        String json = new String(Files.readAllBytes(report.toPath()), "UTF-8");
+        assertTrue(json, json.contains("\"count\": 1, \"files\": 2, \"bytes\": 100}"));
+        assertTrue(json, json.contains("\"targets\": {\n    \"java: \\\"out\\\"\": {\"invocations\": 1, \"files\": 3, \"millis\": "));
+    }
+}
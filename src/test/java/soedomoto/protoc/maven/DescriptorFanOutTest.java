@@ -0,0 +1,69 @@
+package soedomoto.protoc.maven;
+
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class DescriptorFanOutTest {
+    @Test
+    public void insertsBeforeMarkerWithItsIndentation() throws IOException {
+        StringBuilder content = new StringBuilder("class A {\n    // @@protoc_insertion_point(class_scope:A)\n}\n");
+        DescriptorFanOut.insert(content, "class_scope:A", "int x;\nint y;\n", "A.java");
+        assertEquals("class A {\n    int x;\n    int y;\n    // @@protoc_insertion_point(class_scope:A)\n}\n", content.toString());
+    }
+
+    @Test
+    public void insertKeepsEmptyLinesUnindented() throws IOException {
+        StringBuilder content = new StringBuilder("\t\t// @@protoc_insertion_point(p)\n");
+        DescriptorFanOut.insert(content, "p", "a\n\nb", "f");
+        assertEquals("\t\ta\n\n\t\tb\n\t\t// @@protoc_insertion_point(p)\n", content.toString());
+    }
+
+    @Test
+    public void insertsAtUnindentedMarker() throws IOException {
+        StringBuilder content = new StringBuilder("first\n@@protoc_insertion_point(p) trailing\nlast\n");
+        DescriptorFanOut.insert(content, "p", "inserted", "f");
+        assertEquals("first\ninserted\n@@protoc_insertion_point(p) trailing\nlast\n", content.toString());
+    }
+
+    @Test
+    public void insertsRepeatedlyInOrder() throws IOException {
+        StringBuilder content = new StringBuilder("  // @@protoc_insertion_point(p)\n");
+        DescriptorFanOut.insert(content, "p", "one\n", "f");
+        DescriptorFanOut.insert(content, "p", "two\n", "f");
+        assertEquals("  one\n  two\n  // @@protoc_insertion_point(p)\n", content.toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnUnknownInsertionPoint() throws IOException {
+        DescriptorFanOut.insert(new StringBuilder("// @@protoc_insertion_point(other)\n"), "p", "x", "f");
+    }
+
+    @Test
+    public void jsonNameCamelCasesUnderscores() {
+        assertEquals("fooBarBaz", jsonName("foo_bar_baz"));
+        assertEquals("foo", jsonName("foo"));
+        assertEquals("fooBar", jsonName("foo__bar"));
+        assertEquals("Foo", jsonName("_foo"));
+        assertEquals("fooBar", jsonName("foo_bar_"));
+        assertEquals("foo1Bar", jsonName("foo1_bar"));
+        assertEquals("foo2bar", jsonName("foo_2bar"));
+        assertEquals("FOOBAR", jsonName("FOO_BAR"));
+    }
+
+    @Test
+    public void jsonNameKeepsExplicitName() {
+        FieldDescriptorProto.Builder field = FieldDescriptorProto.newBuilder().setName("foo_bar").setJsonName("custom");
+        DescriptorFanOut.addJsonName(field);
+        assertEquals("custom", field.getJsonName());
+    }
+
+    private static String jsonName(String name) {
+        FieldDescriptorProto.Builder field = FieldDescriptorProto.newBuilder().setName(name);
+        DescriptorFanOut.addJsonName(field);
+        return field.getJsonName();
+    }
+}
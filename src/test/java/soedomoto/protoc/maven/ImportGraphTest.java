@@ -0,0 +1,106 @@
+package soedomoto.protoc.maven;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ImportGraphTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void hashCoversTransitiveImports() throws IOException {
+        File dir = tmp.newFolder("protos");
+        File a = write(dir, "a.proto", "import \"b.proto\";\n");
+        File b = write(dir, "b.proto", "import \"c.proto\";\n");
+        File c = write(dir, "c.proto", "message C {}\n");
+        File d = write(dir, "d.proto", "message D {}\n");
+
+        Map<File, String> before = hashes(dir, null, a, b, c, d);
+        write(dir, "c.proto", "message C { int32 changed = 1; }\n");
+        Map<File, String> after = hashes(dir, null, a, b, c, d);
+
+        assertNotEquals(before.get(a), after.get(a));
+        assertNotEquals(before.get(b), after.get(b));
+        assertNotEquals(before.get(c), after.get(c));
+        assertEquals(before.get(d), after.get(d));
+    }
+
+    @Test
+    public void recordsImporters() throws IOException {
+        File dir = tmp.newFolder("protos");
+        File a = write(dir, "a.proto", "import \"c.proto\";\n");
+        File b = write(dir, "b.proto", "import public \"c.proto\";\n");
+        File c = write(dir, "c.proto", "message C {}\n");
+
+        ImportGraph graph = graph(dir, null);
+        for (File file : Arrays.asList(a, b, c)) graph.dependencyHash(file);
+
+        Map<String, Set<String>> importers = graph.getImporters();
+        assertEquals(new TreeSet<String>(Arrays.asList(a.getPath(), b.getPath())), importers.get(c.getPath()));
+        assertNull(importers.get(a.getPath()));
+    }
+
+    @Test
+    public void toleratesCycles() throws IOException {
+        File dir = tmp.newFolder("protos");
+        File a = write(dir, "a.proto", "import \"b.proto\";\n");
+        File b = write(dir, "b.proto", "import \"a.proto\";\n");
+        File self = write(dir, "self.proto", "import \"self.proto\";\n");
+
+        ImportGraph graph = graph(dir, null);
+        assertNotNull(graph.dependencyHash(a));
+        assertNotNull(graph.dependencyHash(b));
+        assertNotNull(graph.dependencyHash(self));
+        assertEquals(Collections.singleton(b.getPath()), graph.getImporters().get(a.getPath()));
+        assertEquals(Collections.singleton(a.getPath()), graph.getImporters().get(b.getPath()));
+    }
+
+    @Test
+    public void resolvesIncludeDirectoriesFirst() throws IOException {
+        File dir = tmp.newFolder("protos");
+        File include = tmp.newFolder("include");
+        File a = write(dir, "a.proto", "import \"shared.proto\";\n");
+        File local = write(dir, "shared.proto", "message Local {}\n");
+        File included = write(include, "shared.proto", "message Included {}\n");
+
+        ImportGraph graph = graph(dir, include);
+        graph.dependencyHash(a);
+        assertEquals(Collections.singleton(a.getPath()), graph.getImporters().get(included.getPath()));
+        assertNull(graph.getImporters().get(local.getPath()));
+    }
+
+    @Test
+    public void hashChangesWhenImportAppears() throws IOException {
+        File dir = tmp.newFolder("protos");
+        File a = write(dir, "a.proto", "import \"later.proto\";\n");
+        String missing = graph(dir, null).dependencyHash(a);
+        write(dir, "later.proto", "message Later {}\n");
+        assertNotEquals(missing, graph(dir, null).dependencyHash(a));
+    }
+
+    private Map<File, String> hashes(File dir, File include, File... files) throws IOException {
+        ImportGraph graph = graph(dir, include);
+        Map<File, String> hashes = new HashMap<File, String>();
+        for (File file : files) hashes.put(file, graph.dependencyHash(file));
+        return hashes;
+    }
+
+    private static ImportGraph graph(File dir, File include) throws IOException {
+        File[] includes = (include != null) ? new File[]{include} : null;
+        return new ImportGraph(new BuildManifest(), includes, SourceSnapshot.scan(new File[]{dir}, "proto"));
+    }
+
+    private static File write(File dir, String name, String content) throws IOException {
+        File file = new File(dir, name).getAbsoluteFile();
+        Files.write(file.toPath(), content.getBytes("UTF-8"));
+        return file;
+    }
+}
@@ -0,0 +1,124 @@
+package soedomoto.protoc.maven;
+
+import org.apache.maven.model.Build;
+import org.apache.maven.model.Model;
+import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.plugin.descriptor.MojoDescriptor;
+import org.apache.maven.project.MavenProject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonatype.plexus.build.incremental.DefaultBuildContext;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two executions of the generate goal in one module, with their own inputs and a shared output folder
+ */
+public class MultipleExecutionsTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File basedir;
+    private File outputDir;
+
+    @Before
+    public void setUp() throws Exception {
+        basedir = tmp.newFolder("project");
+        outputDir = new File(basedir, "target/generated-sources/protobuf");
+        write(new File(basedir, "src/main/first/first.proto"), "syntax = \"proto3\";\nmessage FirstMessage {}\n");
+        write(new File(basedir, "src/main/second/second.proto"), "syntax = \"proto3\";\nmessage SecondMessage {}\n");
+    }
+
+    @Test
+    public void executionsKeepTheirOwnOutputs() throws Exception {
+        execute("first");
+        execute("second");
+        assertTrue(output("First").isFile());
+        assertTrue(output("Second").isFile());
+        assertTrue(new File(basedir, "target/pjmp-manifest-first.ser").isFile());
+        assertTrue(new File(basedir, "target/pjmp-manifest-second.ser").isFile());
+
+        // the other execution's build neither pruned nor invalidated anything
+        assertEquals(0, execute("first").get(BuildMetrics.PROTOC_INVOCATIONS));
+        assertEquals(0, execute("second").get(BuildMetrics.PROTOC_INVOCATIONS));
+        assertTrue(output("First").isFile());
+        assertTrue(output("Second").isFile());
+    }
+
+    @Test
+    public void removedProtoOnlyPrunesItsExecution() throws Exception {
+        execute("first");
+        execute("second");
+        assertTrue(new File(basedir, "src/main/second/second.proto").delete());
+
+        execute("second");
+        assertFalse(output("Second").exists());
+        assertTrue(output("First").isFile());
+        assertEquals(0, execute("first").get(BuildMetrics.PROTOC_INVOCATIONS));
+    }
+
+    @Test
+    public void targetsOfOtherExecutionsAreNotOrphans() throws Exception {
+        execute("first");
+        File pythonDir = new File(basedir, "target/generated-sources/python");
+        execute("second", "python", pythonDir);
+        assertTrue(output("First").isFile());
+        assertTrue(new File(pythonDir, "second_pb2.py").isFile());
+        assertEquals(0, execute("first").get(BuildMetrics.PROTOC_INVOCATIONS));
+    }
+
+    private BuildMetrics execute(String executionId) throws Exception {
+        return execute(executionId, "java", outputDir);
+    }
+
+    private BuildMetrics execute(String executionId, String type, File targetDir) throws Exception {
+        Model model = new Model();
+        model.setPackaging("jar");
+        model.setBuild(new Build());
+        model.getBuild().setDirectory(new File(basedir, "target").getAbsolutePath());
+        MavenProject project = new MavenProject(model);
+        project.setFile(new File(basedir, "pom.xml"));
+
+        // the defaults Maven would inject from the @Parameter declarations
+        ProtocMojo mojo = new ProtocMojo();
+        mojo.project = project;
+        mojo.mojoExecution = new MojoExecution(new MojoDescriptor(), executionId);
+        mojo.extension = "proto";
+        mojo.optimizeCodegen = true;
+        mojo.includeStdTypes = true;
+        mojo.includeMavenTypes = "none";
+        mojo.includeImports = true;
+        mojo.compileMavenTypes = "none";
+        mojo.addProtoSources = "none";
+        mojo.inputDirectories = new File[]{new File(basedir, "src/main/" + executionId)};
+        mojo.batchSize = 500;
+        mojo.fuseTargets = true;
+        mojo.dependencyConflicts = "warn";
+        mojo.timingReportFile = new File(basedir, "target/pjmp-timing.json");
+        OutputTarget target = new OutputTarget();
+        target.type = type;
+        target.outputDirectory = targetDir;
+        mojo.outputTargets = new OutputTarget[]{target};
+        Field buildContext = ProtocMojo.class.getDeclaredField("buildContext");
+        buildContext.setAccessible(true);
+        buildContext.set(mojo, new DefaultBuildContext());
+
+        mojo.execute();
+        return mojo.getMetrics();
+    }
+
+    private File output(String outerClass) {
+        return new File(outputDir, outerClass + ".java");
+    }
+
+    private static void write(File file, String content) throws Exception {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,110 @@
+package soedomoto.protoc.maven;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PartitionBatchesTest {
+    private final File dir = new File("protos").getAbsoluteFile();
+
+    @Test
+    public void splitsInOrderWithoutCosts() {
+        List<File> files = files(dir, "a", "b", "c", "d", "e");
+        List<List<File>> batches = ProtocMojo.partitionBatches(files, 2);
+        assertEquals(Arrays.asList(files(dir, "a", "b"), files(dir, "c", "d"), files(dir, "e")), batches);
+    }
+
+    @Test
+    public void keepsDirectoriesApart() {
+        File other = new File(dir, "sub");
+        List<File> files = new ArrayList<File>(files(dir, "a", "b"));
+        files.add(1, new File(other, "x.proto"));
+        List<List<File>> batches = ProtocMojo.partitionBatches(files, 10);
+        assertEquals(Arrays.asList(files(dir, "a", "b"), files(other, "x")), batches);
+    }
+
+    @Test
+    public void balancesCostsAcrossBatches() {
+        List<File> files = files(dir, "a", "b", "c", "d");
+        Map<File, Long> costs = costs(files, 10, 8, 1, 1);
+        // in order a and b would share a batch costing 18 against 2
+        List<List<File>> batches = ProtocMojo.partitionBatches(files, 2, costs);
+        assertEquals(Arrays.asList(files(dir, "a", "d"), files(dir, "b", "c")), batches);
+    }
+
+    @Test
+    public void separatesExpensiveFiles() {
+        List<File> files = files(dir, "a", "b", "c", "d", "e", "f");
+        Map<File, Long> costs = costs(files, 1, 1, 50, 1, 1, 50);
+        List<List<File>> batches = ProtocMojo.partitionBatches(files, 3, costs);
+        // in order the two expensive files would share the second batch
+        assertEquals(Arrays.asList(files(dir, "a", "b", "c"), files(dir, "d", "e", "f")), ProtocMojo.partitionBatches(files, 3));
+        assertEquals(2, batches.size());
+        assertEquals(52L, total(batches.get(0), costs));
+        assertEquals(52L, total(batches.get(1), costs));
+    }
+
+    @Test
+    public void respectsBatchSizeAndKeepsEveryFile() {
+        List<File> files = new ArrayList<File>();
+        Map<File, Long> costs = new HashMap<File, Long>();
+        Random random = new Random(42);
+        for (int i = 0; i < 103; i++) {
+            File file = new File(dir, "f" + i + ".proto");
+            files.add(file);
+            costs.put(file, (long) random.nextInt(1000));
+        }
+        List<List<File>> batches = ProtocMojo.partitionBatches(files, 10, costs);
+        assertEquals(11, batches.size());
+        List<File> all = new ArrayList<File>();
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (List<File> batch : batches) {
+            assertTrue(batch.size() <= 10);
+            // files keep their relative order within a batch
+            assertTrue(isOrdered(batch, files));
+            all.addAll(batch);
+            min = Math.min(min, total(batch, costs));
+            max = Math.max(max, total(batch, costs));
+        }
+        assertEquals(new HashSet<File>(files), new HashSet<File>(all));
+        assertEquals(files.size(), all.size());
+        // greedy balancing stays within the cost of one file
+        assertTrue(max - min <= 1000);
+    }
+
+    @Test
+    public void smallGroupIsOneBatch() {
+        List<File> files = files(dir, "a", "b");
+        assertEquals(Collections.singletonList(files), ProtocMojo.partitionBatches(files, 5, costs(files, 3, 4)));
+    }
+
+    private static List<File> files(File dir, String... names) {
+        List<File> files = new ArrayList<File>();
+        for (String name : names) files.add(new File(dir, name + ".proto"));
+        return files;
+    }
+
+    private static Map<File, Long> costs(List<File> files, long... costs) {
+        Map<File, Long> map = new HashMap<File, Long>();
+        for (int i = 0; i < costs.length; i++) map.put(files.get(i), costs[i]);
+        return map;
+    }
+
+    private static long total(List<File> batch, Map<File, Long> costs) {
+        long total = 0;
+        for (File file : batch) total += costs.get(file);
+        return total;
+    }
+
+    private static boolean isOrdered(List<File> batch, List<File> files) {
+        for (int i = 1; i < batch.size(); i++) {
+            if (files.indexOf(batch.get(i - 1)) > files.indexOf(batch.get(i))) return false;
+        }
+        return true;
+    }
+}
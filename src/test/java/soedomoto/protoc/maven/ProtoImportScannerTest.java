@@ -0,0 +1,60 @@
+package soedomoto.protoc.maven;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProtoImportScannerTest {
+    @Test
+    public void findsImports() {
+        String proto = "syntax = \"proto3\";\n"
+                + "package a;\n"
+                + "import \"a/b.proto\";\n"
+                + "import 'c.proto' ;\n"
+                + "import\n    \"d/e.proto\";\n"
+                + "message M { int32 x = 1; }\n";
+        assertEquals(Arrays.asList("a/b.proto", "c.proto", "d/e.proto"), ProtoImportScanner.scanImports(proto));
+    }
+
+    @Test
+    public void findsPublicAndWeakImports() {
+        String proto = "import public \"pub.proto\";\nimport weak \"weak.proto\";\nimport \"plain.proto\";\n";
+        assertEquals(Arrays.asList("pub.proto", "weak.proto", "plain.proto"), ProtoImportScanner.scanImports(proto));
+    }
+
+    @Test
+    public void ignoresCommentedImports() {
+        String proto = "// import \"line.proto\";\n"
+                + "/* import \"block.proto\";\n   import \"block2.proto\"; */\n"
+                + "import /* inline */ \"real.proto\"; // trailing\n"
+                + "/**\n * import \"doc.proto\";\n */\n";
+        assertEquals(Collections.singletonList("real.proto"), ProtoImportScanner.scanImports(proto));
+    }
+
+    @Test
+    public void ignoresImportsInStrings() {
+        String proto = "option java_package = \"import \\\"quoted.proto\\\";\";\n"
+                + "option go_package = 'import \"single.proto\";';\n"
+                + "import \"real.proto\";\n";
+        assertEquals(Collections.singletonList("real.proto"), ProtoImportScanner.scanImports(proto));
+    }
+
+    @Test
+    public void keepsCommentMarkersInStrings() {
+        // neither string starts a comment, the imports after them count
+        String proto = "option go_package = \"example.com/a//b\"; import \"after_line.proto\";\n"
+                + "option (x) = \"/*\";\n"
+                + "import \"after_block.proto\";\n"
+                + "option (y) = \"*/\";\n";
+        assertEquals(Arrays.asList("after_line.proto", "after_block.proto"), ProtoImportScanner.scanImports(proto));
+    }
+
+    @Test
+    public void ignoresIdentifiersContainingImport() {
+        String proto = "message reimport { string import_path = 1; }\nimport \"real.proto\";\n";
+        assertEquals(Collections.singletonList("real.proto"), ProtoImportScanner.scanImports(proto));
+    }
+}